@@ -0,0 +1,244 @@
+package com.be2.services.client;
+
+import com.be2.logging.SystemLogger;
+import org.codehaus.jackson.map.ObjectReader;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the OAuth access token of the {@link ServicesClient} and refreshes it before it expires.
+ * <p>
+ * The token is fetched with the {@code client_credentials} grant through the pooled http client of
+ * an endpoint chosen by the {@link EndpointBalancer}, so an ejected endpoint is not asked. Readers get the current token from a volatile field without locking, refreshes
+ * are serialized and replace the token atomically. A token without {@code expires_in} is never
+ * refreshed proactively, only after the server rejected it.
+ */
+public class AccessTokenManager {
+
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long MIN_REFRESH_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private final EndpointBalancer balancer;
+    private final String clientId;
+    private final String clientSecret;
+    private final String preAuthorizedToken;
+    private final double refreshRatio;
+    private final ObjectReader responseReader;
+
+    private final ReentrantLock refreshLock = new ReentrantLock();
+    private volatile String token;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> scheduledRefresh;
+
+    /**
+     *
+     * @param balancer endpoints of the services, the token is fetched from
+     * @param clientId
+     * @param clientSecret
+     * @param preAuthorizedToken fixed token, used instead of fetching one if not empty
+     * @param refreshRatio part of the token lifetime after which the token is refreshed, e.g. 0.8
+     * @param responseReader JSON reader of {@link Map}, the token response is parsed with
+     */
+    public AccessTokenManager(EndpointBalancer balancer, String clientId, String clientSecret,
+                              String preAuthorizedToken, double refreshRatio, ObjectReader responseReader) {
+        this.balancer = balancer;
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.preAuthorizedToken = preAuthorizedToken;
+        this.refreshRatio = Math.min(Math.max(refreshRatio, 0.1), 1.0);
+        this.responseReader = responseReader;
+    }
+
+    /**
+     * Sets the initial token and starts the background refresh.
+     */
+    public synchronized void start() {
+        if (!preAuthorizedToken.isEmpty()) {
+            token = preAuthorizedToken;
+            return;
+        }
+        if (clientId.isEmpty()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "services-token-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        refresh(null);
+    }
+
+    /**
+     * Stops the background refresh.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     *
+     * @return current token, null if none could be fetched
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Fetches a new token unless another thread already replaced the rejected one.
+     *
+     * @param rejectedToken token the server answered 401 for
+     * @return current token
+     */
+    public String refreshAfterUnauthorized(String rejectedToken) {
+        if (!preAuthorizedToken.isEmpty() || clientId.isEmpty()) {
+            return token;
+        }
+        return refresh(rejectedToken);
+    }
+
+    /**
+     *
+     * @param rejectedToken null to refresh unconditionally
+     * @return current token
+     */
+    private String refresh(String rejectedToken) {
+        refreshLock.lock();
+        try {
+            if (rejectedToken != null && !rejectedToken.equals(token)) {
+                return token;
+            }
+            long delay = RETRY_DELAY_MILLIS;
+            try {
+                Map<String, Object> response = fetchToken();
+                Object accessToken = response.get("access_token");
+                if (accessToken != null) {
+                    token = accessToken.toString();
+                    Object expiresIn = response.get("expires_in");
+                    if (expiresIn != null) {
+                        long lifetime = TimeUnit.SECONDS.toMillis(Long.parseLong(expiresIn.toString()));
+                        delay = Math.max(MIN_REFRESH_DELAY_MILLIS, (long) (lifetime * refreshRatio));
+                    } else {
+                        delay = -1;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                SystemLogger.error(e);
+            }
+            scheduleRefresh(delay);
+            return token;
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the pending refresh, so a refresh after a 401 does not start a second refresh chain.
+     *
+     * @param delayMillis -1 to only cancel the pending refresh
+     */
+    private synchronized void scheduleRefresh(long delayMillis) {
+        if (scheduledRefresh != null) {
+            // a no-op for the running refresh scheduling its successor
+            scheduledRefresh.cancel(false);
+            scheduledRefresh = null;
+        }
+        if (scheduler == null || delayMillis < 0) {
+            return;
+        }
+        scheduledRefresh = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh(null);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private Map<String, Object> fetchToken() throws IOException {
+        int index = balancer.choose();
+        ServiceEndpoint endpoint = balancer.getEndpoints()[index];
+        endpoint.start();
+        long start = System.nanoTime();
+        int status = -1;
+        try {
+            Map<String, Object> response = fetchToken(endpoint);
+            status = 200;
+            return response;
+        } catch (StatusException e) {
+            status = e.status;
+            throw e;
+        } finally {
+            // a rejected client secret is not a failure of the endpoint
+            balancer.finish(index, System.nanoTime() - start, status < 0 || status >= 500);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> fetchToken(ServiceEndpoint endpoint) throws IOException {
+        URL serviceUrl = new URL(endpoint.getUrl());
+        HttpHost targetHost = new HttpHost(serviceUrl.getHost(), serviceUrl.getPort(), serviceUrl.getProtocol());
+        HttpPost post = new HttpPost(serviceUrl.getPath() + "/" + ServicesClient.API_URI_AUTH);
+        post.addHeader(BasicScheme.authenticate(new UsernamePasswordCredentials(clientId, clientSecret), "UTF-8", false));
+        List<NameValuePair> nvps = new ArrayList<NameValuePair>();
+        nvps.add(new BasicNameValuePair("grant_type", "client_credentials"));
+        post.setEntity(new UrlEncodedFormEntity(nvps));
+
+        HttpResponse response = endpoint.getDefaultPool().getHttpClient().execute(targetHost, post);
+        HttpEntity entity = response.getEntity();
+        try {
+            int status = response.getStatusLine().getStatusCode();
+            if (status != 200) {
+                throw new StatusException(status);
+            }
+            if (entity == null) {
+                throw new IOException("Access token response is empty");
+            }
+            try (InputStream content = entity.getContent()) {
+                return (Map<String, Object>) responseReader.readValue(content);
+            }
+        } finally {
+            EntityUtils.consume(entity);
+        }
+    }
+
+    /**
+     * Unsuccessful status of the token response.
+     */
+    private static class StatusException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        private StatusException(int status) {
+            super("Access token request failed with status " + status);
+            this.status = status;
+        }
+    }
+}
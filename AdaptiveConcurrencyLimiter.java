@@ -0,0 +1,118 @@
+package com.be2.services.interception;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AIMD concurrency limit of one resource class.
+ * <p>
+ * A call completing within the latency threshold while the limit is in use raises the limit by
+ * {@code 1 / limit}, a call exceeding the threshold multiplies it by the backoff ratio. Failed calls
+ * do not move the limit. Calls above the limit are rejected instead of queueing.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long latencyThresholdNanos;
+
+    private final AtomicLong limitBits;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     *
+     * @param initialLimit
+     * @param minLimit
+     * @param maxLimit
+     * @param backoffRatio factor applied to the limit after a slow call, e.g. 0.9
+     * @param latencyThresholdMillis call time above which a call counts as slow
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double backoffRatio, long latencyThresholdMillis) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.backoffRatio = Math.min(Math.max(backoffRatio, 0.1), 0.99);
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        double initial = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+        this.limitBits = new AtomicLong(Double.doubleToRawLongBits(initial));
+    }
+
+    /**
+     *
+     * @return false if the call has to be rejected
+     */
+    public boolean tryAcquire() {
+        int limit = getLimit();
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                rejections.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Ends an acquired call and adapts the limit to its latency.
+     *
+     * @param latencyNanos
+     * @param failed
+     */
+    public void release(long latencyNanos, boolean failed) {
+        int current = inFlight.getAndDecrement();
+        if (failed) {
+            return;
+        }
+        while (true) {
+            long bits = limitBits.get();
+            double limit = Double.longBitsToDouble(bits);
+            double updated;
+            if (latencyNanos > latencyThresholdNanos) {
+                updated = Math.max(minLimit, limit * backoffRatio);
+            } else if (current * 2 >= limit) {
+                // only grow while the limit is actually used
+                updated = Math.min(maxLimit, limit + 1.0 / limit);
+            } else {
+                return;
+            }
+            if (updated == limit || limitBits.compareAndSet(bits, Double.doubleToRawLongBits(updated))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getLimit() {
+        return (int) Double.longBitsToDouble(limitBits.get());
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "limit=" + getLimit() + " inFlight=" + getInFlight() + " rejections=" + getRejections();
+    }
+}
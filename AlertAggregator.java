@@ -0,0 +1,243 @@
+package com.be2.services.metrics;
+
+import com.be2.logging.SystemLogger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Coalesces alerts per source and alert kind into one summary per window.
+ * <p>
+ * Request threads only update counters of the current window. A background thread closes the
+ * windows and hands a summary to the {@link Sink} if the token bucket of the key has a token left.
+ * Summaries that are rate limited are merged into the next one, so no alert is lost, only delayed.
+ */
+public class AlertAggregator {
+
+    /**
+     *
+     */
+    public enum Kind {
+        FAILED,
+        TIME_EXCEEDED
+    }
+
+    /**
+     * Receives the summaries on the aggregator thread.
+     */
+    public interface Sink {
+
+        /**
+         *
+         * @param source
+         * @param kind
+         * @param count number of alerts in the summary
+         * @param maxTime highest call time of the alerts
+         * @param firstTimestamp epoch millis of the first alert
+         * @param lastTimestamp epoch millis of the last alert
+         */
+        void emit(String source, Kind kind, long count, long maxTime, long firstTimestamp, long lastTimestamp);
+    }
+
+    private final long windowMillis;
+    private final double bucketCapacity;
+    private final double tokensPerMilli;
+    private final Sink sink;
+    private final ConcurrentMap<String, AlertState[]> states = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     *
+     * @param windowMillis length of a summary window
+     * @param bucketCapacity maximum number of summaries a key may emit in a burst
+     * @param summariesPerMinute sustained number of summaries a key may emit
+     * @param sink
+     */
+    public AlertAggregator(long windowMillis, int bucketCapacity, double summariesPerMinute, Sink sink) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be positive: " + windowMillis);
+        }
+        this.windowMillis = windowMillis;
+        this.bucketCapacity = Math.max(1, bucketCapacity);
+        this.tokensPerMilli = Math.max(0.0, summariesPerMinute) / TimeUnit.MINUTES.toMillis(1);
+        this.sink = sink;
+    }
+
+    /**
+     * Starts closing windows in the background.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "rest-alert-aggregator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Emits the open windows and stops the background thread.
+     */
+    public synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        flush();
+    }
+
+    /**
+     *
+     * @param source
+     * @param kind
+     * @param time call time of the alerting call
+     */
+    public void record(String source, Kind kind, long time) {
+        AlertState[] sourceStates = states.get(source);
+        if (sourceStates == null) {
+            AlertState[] created = new AlertState[Kind.values().length];
+            for (int i = 0; i < created.length; i++) {
+                created[i] = new AlertState(bucketCapacity);
+            }
+            sourceStates = states.putIfAbsent(source, created);
+            if (sourceStates == null) {
+                sourceStates = created;
+            }
+        }
+        AtomicReference<Window> current = sourceStates[kind.ordinal()].current;
+        long timestamp = System.currentTimeMillis();
+        // a window refuses the alert once closed, the flushing thread has installed the next one by then
+        while (!current.get().record(time, timestamp)) {
+            // retry on the next window
+        }
+    }
+
+    private synchronized void flush() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, AlertState[]> entry : states.entrySet()) {
+            AlertState[] sourceStates = entry.getValue();
+            for (Kind kind : Kind.values()) {
+                try {
+                    sourceStates[kind.ordinal()].flush(entry.getKey(), kind, now);
+                } catch (Throwable e) {
+                    SystemLogger.error(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Window and rate limit state of one source and alert kind. Everything but
+     * {@link #current} is only touched by the flushing thread.
+     */
+    private class AlertState {
+
+        private final AtomicReference<Window> current = new AtomicReference<>(new Window());
+        private double tokens;
+        private long lastRefill;
+        private long pendingCount;
+        private long pendingMaxTime;
+        private long pendingFirst;
+        private long pendingLast;
+
+        private AlertState(double tokens) {
+            this.tokens = tokens;
+            this.lastRefill = System.currentTimeMillis();
+        }
+
+        private void flush(String source, Kind kind, long now) {
+            if (current.get().count.get() > 0) {
+                Window closed = current.getAndSet(new Window());
+                // no alert counts into the window once it is closed, so the count is final
+                long count = closed.close();
+                if (pendingCount == 0) {
+                    pendingFirst = closed.firstTimestamp.get();
+                }
+                pendingCount += count;
+                pendingMaxTime = Math.max(pendingMaxTime, closed.maxTime.get());
+                pendingLast = Math.max(pendingLast, closed.lastTimestamp);
+            }
+            if (pendingCount == 0) {
+                return;
+            }
+            tokens = Math.min(bucketCapacity, tokens + (now - lastRefill) * tokensPerMilli);
+            lastRefill = now;
+            if (tokens >= 1.0) {
+                tokens -= 1.0;
+                sink.emit(source, kind, pendingCount, pendingMaxTime, pendingFirst, pendingLast);
+                pendingCount = 0;
+                pendingMaxTime = 0;
+                pendingFirst = 0;
+                pendingLast = 0;
+            }
+        }
+    }
+
+    /**
+     * Counters of one open window, updated by the request threads.
+     */
+    private static class Window {
+
+        private static final long CLOSED = -1;
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong maxTime = new AtomicLong();
+        private final AtomicLong firstTimestamp = new AtomicLong();
+        private volatile long lastTimestamp;
+
+        /**
+         *
+         * @param time
+         * @param timestamp
+         * @return false if the window is closed and the alert was not counted
+         */
+        private boolean record(long time, long timestamp) {
+            if (count.get() == CLOSED) {
+                return false;
+            }
+            // written before the count, so a closed window holds the values of every alert it counted
+            firstTimestamp.compareAndSet(0, timestamp);
+            lastTimestamp = timestamp;
+            long max = maxTime.get();
+            while (time > max && !maxTime.compareAndSet(max, time)) {
+                max = maxTime.get();
+            }
+            while (true) {
+                long current = count.get();
+                if (current == CLOSED) {
+                    return false;
+                }
+                if (count.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         *
+         * @return number of alerts counted, final as the window refuses further alerts
+         */
+        private long close() {
+            return count.getAndSet(CLOSED);
+        }
+    }
+}
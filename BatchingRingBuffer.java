@@ -0,0 +1,253 @@
+package com.be2.utils;
+
+import com.be2.logging.SystemLogger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded multi-producer, single-consumer ring buffer of preallocated event records, drained in
+ * batches by one background thread.
+ * <p>
+ * Producers claim a slot, fill the record returned by {@link #get(long)} and {@link #publish(long)}
+ * it. Claiming is a CAS on the tail sequence, nothing is allocated on the producer side. When the
+ * buffer is full the {@link FullPolicy} decides whether the producer drops the event or waits.
+ * <p>
+ * An idle consumer parks for doubling periods of up to 100 ms, and the first event published
+ * while it waits unparks it, so an idle buffer costs a few wakeups per second.
+ *
+ * @param <E> event record type
+ */
+public class BatchingRingBuffer<E> {
+
+    private static final long MIN_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * What a producer does when no slot is free.
+     */
+    public enum FullPolicy {
+        /** the event is dropped and counted */
+        DROP,
+        /** the producer waits until the consumer frees a slot */
+        BLOCK
+    }
+
+    /**
+     *
+     * @param <E>
+     */
+    public interface EventFactory<E> {
+        E newInstance();
+    }
+
+    /**
+     *
+     * @param <E>
+     */
+    public interface EventHandler<E> {
+
+        /**
+         * Called on the consumer thread for every published event.
+         *
+         * @param event
+         */
+        void onEvent(E event);
+
+        /**
+         * Called on the consumer thread after each drained batch, e.g. to flush buffered output.
+         */
+        void onBatchEnd();
+
+        /**
+         * Called once on the consumer thread after the last event, e.g. to close the output.
+         */
+        void onStop();
+    }
+
+    private final Object[] entries;
+    private final AtomicLongArray published;
+    private final int mask;
+    private final int batchSize;
+    private final FullPolicy fullPolicy;
+    private final EventHandler<E> handler;
+
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile boolean running;
+    private volatile boolean waiting;
+    private volatile Thread consumer;
+
+    /**
+     *
+     * @param capacity rounded up to the next power of two
+     * @param batchSize maximum number of events handled before {@link EventHandler#onBatchEnd()}
+     * @param fullPolicy
+     * @param factory creates the preallocated records
+     * @param handler
+     */
+    public BatchingRingBuffer(int capacity, int batchSize, FullPolicy fullPolicy, EventFactory<E> factory, EventHandler<E> handler) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.entries = new Object[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            entries[i] = factory.newInstance();
+            published.set(i, -1);
+        }
+        this.mask = size - 1;
+        this.batchSize = Math.max(1, batchSize);
+        this.fullPolicy = fullPolicy;
+        this.handler = handler;
+    }
+
+    /**
+     * Starts the consumer thread.
+     *
+     * @param threadName
+     */
+    public synchronized void start(String threadName) {
+        if (running) {
+            return;
+        }
+        running = true;
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, threadName);
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Stops the consumer thread after it has drained the events published so far. The consumer
+     * calls {@link EventHandler#onStop()} when done, also if that takes longer than the timeout.
+     *
+     * @param timeoutMillis how long to wait for the consumer
+     */
+    public synchronized void stop(long timeoutMillis) {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        consumer = null;
+    }
+
+    /**
+     * Claims the next slot.
+     *
+     * @return sequence of the claimed slot, -1 if the event was dropped
+     */
+    public long claim() {
+        while (true) {
+            long sequence = tail.get();
+            if (sequence - head.get() > mask) {
+                if (fullPolicy == FullPolicy.DROP || !running) {
+                    dropped.increment();
+                    return -1;
+                }
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            } else if (tail.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param sequence claimed sequence
+     * @return record of the slot, to be filled before {@link #publish(long)}
+     */
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) entries[(int) sequence & mask];
+    }
+
+    /**
+     * Makes a filled slot visible to the consumer.
+     *
+     * @param sequence claimed sequence
+     */
+    public void publish(long sequence) {
+        // a volatile write, so either the consumer sees the event or this sees it waiting
+        published.set((int) sequence & mask, sequence);
+        if (waiting) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     *
+     * @return number of events dropped because the buffer was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     *
+     * @return number of claimed events not yet handled
+     */
+    public long getBacklog() {
+        return Math.max(0, tail.get() - head.get());
+    }
+
+    private void drainLoop() {
+        long next = head.get();
+        long idleParkNanos = MIN_IDLE_PARK_NANOS;
+        while (true) {
+            int handled = 0;
+            while (handled < batchSize && published.get((int) next & mask) == next) {
+                try {
+                    handler.onEvent(get(next));
+                } catch (Throwable e) {
+                    SystemLogger.error(e);
+                }
+                next++;
+                handled++;
+            }
+            if (handled > 0) {
+                idleParkNanos = MIN_IDLE_PARK_NANOS;
+                head.lazySet(next);
+                try {
+                    handler.onBatchEnd();
+                } catch (Throwable e) {
+                    SystemLogger.error(e);
+                }
+            } else if (!running) {
+                try {
+                    handler.onStop();
+                } catch (Throwable e) {
+                    SystemLogger.error(e);
+                }
+                return;
+            } else {
+                waiting = true;
+                if (published.get((int) next & mask) != next && running) {
+                    LockSupport.parkNanos(idleParkNanos);
+                }
+                waiting = false;
+                idleParkNanos = Math.min(idleParkNanos * 2, MAX_IDLE_PARK_NANOS);
+            }
+        }
+    }
+}
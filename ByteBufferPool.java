@@ -0,0 +1,70 @@
+package com.be2.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of equally sized direct buffers for copying between channels.
+ * <p>
+ * A direct buffer is read into and written from by the channel without an intermediate heap copy,
+ * and pooling avoids both a per-transfer allocation and the cost of allocating direct memory.
+ * When the pool is empty a new buffer is created, buffers released into a full pool are dropped.
+ */
+public class ByteBufferPool {
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final LongAdder created = new LongAdder();
+
+    /**
+     *
+     * @param bufferSize
+     * @param maxPooled buffers kept for reuse
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    }
+
+    /**
+     *
+     * @return cleared buffer, to be released after use
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            created.increment();
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     *
+     * @param buffer acquired buffer, not used afterwards
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize) {
+            buffer.clear();
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     *
+     * @return number of buffers allocated, a value close to the pool size means the pool is large enough
+     */
+    public long getCreated() {
+        return created.sum();
+    }
+
+    /**
+     *
+     * @return number of buffers waiting for reuse
+     */
+    public int getPooled() {
+        return buffers.size();
+    }
+}
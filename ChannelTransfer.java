@@ -0,0 +1,99 @@
+package com.be2.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copies between channels through pooled direct buffers, without staging whole payloads in memory.
+ */
+public final class ChannelTransfer {
+
+    private static final long MAX_MAPPING = Integer.MAX_VALUE;
+
+    private ChannelTransfer() {
+    }
+
+    /**
+     * Writes a file region to a stream. Files of at least {@code mmapThreshold} bytes are mapped,
+     * in pieces of at most 2 GiB, and written from the mapping, smaller ones are read through a
+     * pooled buffer. The stream is not closed.
+     *
+     * @param file
+     * @param position
+     * @param count
+     * @param out
+     * @param pool
+     * @param mmapThreshold minimum size to map, 0 to never map
+     * @throws IOException
+     */
+    public static void transfer(FileChannel file, long position, long count, OutputStream out,
+                                ByteBufferPool pool, long mmapThreshold) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        if (mmapThreshold > 0 && count >= mmapThreshold) {
+            long end = position + count;
+            // a mapping holds at most Integer.MAX_VALUE bytes, larger files are mapped piecewise
+            for (long offset = position; offset < end; offset += MAX_MAPPING) {
+                // the mapping is released when the buffer is collected
+                MappedByteBuffer mapped = file.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAX_MAPPING, end - offset));
+                while (mapped.hasRemaining()) {
+                    target.write(mapped);
+                }
+            }
+            return;
+        }
+        ByteBuffer buffer = pool.acquire();
+        try {
+            long remaining = count;
+            while (remaining > 0) {
+                if (buffer.remaining() > remaining) {
+                    buffer.limit((int) remaining);
+                }
+                int read = file.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+                remaining -= read;
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Copies a channel to its end into a file channel through a pooled buffer.
+     *
+     * @param source
+     * @param file
+     * @param pool
+     * @return number of bytes copied
+     * @throws IOException
+     */
+    public static long transfer(ReadableByteChannel source, FileChannel file, ByteBufferPool pool) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        long copied = 0;
+        try {
+            while (source.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    copied += file.write(buffer);
+                }
+                buffer.clear();
+            }
+            return copied;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.be2.services.client;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.jboss.resteasy.client.core.executors.ApacheHttpClient4Executor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pooled connection manager together with the http client and the RESTEasy executor using it.
+ */
+public class ConnectionPool {
+
+    private final String name;
+    private final PoolingClientConnectionManager connectionManager;
+    private final DefaultHttpClient httpClient;
+    private final ApacheHttpClient4Executor executor;
+
+    /**
+     *
+     * @param name
+     * @param connectionManager
+     * @param httpClient client created on the connection manager
+     */
+    public ConnectionPool(String name, PoolingClientConnectionManager connectionManager, DefaultHttpClient httpClient) {
+        this.name = name;
+        this.connectionManager = connectionManager;
+        this.httpClient = httpClient;
+        this.executor = new ApacheHttpClient4Executor(httpClient);
+    }
+
+    /**
+     *
+     * @return
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public DefaultHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public ApacheHttpClient4Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     *
+     * @return leased, pending, available and maximum connections of the pool
+     */
+    public PoolStats getStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * Closes connections past their keep-alive time and connections idle for longer than given.
+     *
+     * @param idleMillis
+     */
+    public void evictIdle(long idleMillis) {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes all connections.
+     */
+    public void shutdown() {
+        connectionManager.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        PoolStats stats = getStats();
+        return name + " leased=" + stats.getLeased()
+                + " pending=" + stats.getPending()
+                + " available=" + stats.getAvailable()
+                + " max=" + stats.getMax();
+    }
+}
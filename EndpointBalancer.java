@@ -0,0 +1,150 @@
+package com.be2.services.client;
+
+import com.be2.logging.SystemLogger;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Spreads the calls over the endpoints of the services by the power of two choices: of two
+ * randomly picked endpoints, the one with the lower {@link ServiceEndpoint#getLoad() load} gets
+ * the call. Compared to always taking the least loaded endpoint, this keeps concurrent callers
+ * from all piling onto the same one.
+ * <p>
+ * An endpoint failing {@code ejectFailures} calls in a row is ejected, unless it is the last one
+ * in the rotation. Ejected endpoints get no calls until a probe request, sent by {@link #probe()},
+ * is answered without a server error.
+ */
+public class EndpointBalancer {
+
+    private final ServiceEndpoint[] endpoints;
+    private final int ejectFailures;
+    private final String probePath;
+    private final int probeTimeoutMillis;
+
+    /**
+     *
+     * @param endpoints
+     * @param ejectFailures consecutive failures ejecting an endpoint, 0 to never eject
+     * @param probePath path below the base url requested by the probe, e.g. {@code api/static}
+     * @param probeTimeoutMillis connect and read timeout of the probe
+     */
+    public EndpointBalancer(ServiceEndpoint[] endpoints, int ejectFailures, String probePath, int probeTimeoutMillis) {
+        this.endpoints = endpoints;
+        this.ejectFailures = ejectFailures;
+        this.probePath = probePath;
+        this.probeTimeoutMillis = probeTimeoutMillis;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public ServiceEndpoint[] getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     *
+     * @return index of the endpoint to send the next call to
+     */
+    public int choose() {
+        int count = endpoints.length;
+        if (count == 1) {
+            return 0;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(count);
+        int second = random.nextInt(count - 1);
+        if (second >= first) {
+            second++;
+        }
+        boolean firstEjected = endpoints[first].isEjected();
+        boolean secondEjected = endpoints[second].isEjected();
+        if (firstEjected && secondEjected) {
+            return findAvailable(first);
+        }
+        if (firstEjected) {
+            return second;
+        }
+        if (secondEjected) {
+            return first;
+        }
+        return endpoints[first].getLoad() <= endpoints[second].getLoad() ? first : second;
+    }
+
+    private int findAvailable(int start) {
+        for (int i = 1; i < endpoints.length; i++) {
+            int index = (start + i) % endpoints.length;
+            if (!endpoints[index].isEjected()) {
+                return index;
+            }
+        }
+        // all ejected by concurrent ejections, calls still go out until a probe reinstates one
+        return start;
+    }
+
+    /**
+     * Records the outcome of a call and ejects the endpoint after too many failures in a row.
+     *
+     * @param index
+     * @param latencyNanos
+     * @param failed
+     */
+    public void finish(int index, long latencyNanos, boolean failed) {
+        ServiceEndpoint endpoint = endpoints[index];
+        int failures = endpoint.finish(latencyNanos, failed);
+        if (ejectFailures > 0 && failures >= ejectFailures && !endpoint.isEjected() && getAvailable() > 1
+                && endpoint.eject()) {
+            SystemLogger.error(new IllegalStateException("Services endpoint ejected after " + failures
+                    + " consecutive failures: " + endpoint.getUrl()));
+        }
+    }
+
+    /**
+     *
+     * @return number of endpoints in the rotation
+     */
+    public int getAvailable() {
+        int available = 0;
+        for (ServiceEndpoint endpoint : endpoints) {
+            if (!endpoint.isEjected()) {
+                available++;
+            }
+        }
+        return available;
+    }
+
+    /**
+     * Sends a probe request to every ejected endpoint and reinstates those answering without a
+     * server error. Called periodically on a thread of its own, as probes block up to their timeout.
+     */
+    public void probe() {
+        for (ServiceEndpoint endpoint : endpoints) {
+            if (endpoint.isEjected() && isHealthy(endpoint)) {
+                endpoint.reinstate();
+            }
+        }
+    }
+
+    private boolean isHealthy(ServiceEndpoint endpoint) {
+        HttpGet request = new HttpGet(endpoint.getUrl() + "/" + probePath);
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, probeTimeoutMillis);
+        HttpConnectionParams.setSoTimeout(params, probeTimeoutMillis);
+        request.setParams(params);
+        try {
+            HttpResponse response = endpoint.getDefaultPool().getHttpClient().execute(request);
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode() < 500;
+        } catch (Exception e) {
+            request.abort();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.be2.services.client;
+
+import org.jboss.resteasy.client.ClientResponseFailure;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Resource proxy sending every call to the endpoint chosen by an {@link EndpointBalancer}.
+ * <p>
+ * Holds one RESTEasy proxy of the resource per endpoint and sits below the client interceptors,
+ * so a retried or hedged call is balanced again. Client errors (4xx) do not count as failures of
+ * the endpoint.
+ */
+public class EndpointRouter implements InvocationHandler {
+
+    private final EndpointBalancer balancer;
+    private final Object[] targets;
+
+    /**
+     *
+     * @param balancer
+     * @param targets proxies of the resource, in the order of {@link EndpointBalancer#getEndpoints()}
+     */
+    public EndpointRouter(EndpointBalancer balancer, Object[] targets) {
+        this.balancer = balancer;
+        this.targets = targets;
+    }
+
+    /**
+     *
+     * @param clazz resource interface
+     * @param balancer
+     * @param targets proxies of the resource, in the order of {@link EndpointBalancer#getEndpoints()}
+     * @return proxy of the resource balancing its calls
+     */
+    public static <T> T create(Class<T> clazz, EndpointBalancer balancer, Object[] targets) {
+        return clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[]{clazz},
+                new EndpointRouter(balancer, targets)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return invokeObjectMethod(proxy, method, args);
+        }
+        int index = balancer.choose();
+        balancer.getEndpoints()[index].start();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Object result = method.invoke(targets[index], args);
+            failed = false;
+            return result;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ClientResponseFailure) {
+                ClientResponseFailure failure = (ClientResponseFailure) cause;
+                failed = failure.getResponse() == null || failure.getResponse().getStatus() >= 500;
+            }
+            throw cause;
+        } finally {
+            balancer.finish(index, System.nanoTime() - start, failed);
+        }
+    }
+
+    private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            default:
+                return "EndpointRouter[" + targets.length + " endpoints]";
+        }
+    }
+}
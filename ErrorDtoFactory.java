@@ -0,0 +1,72 @@
+package com.be2.services.interception;
+
+import com.be2.services.dto.AbstractDTO;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates the error response of a resource method returning an {@link AbstractDTO}.
+ * <p>
+ * The no-argument constructor of each DTO type is resolved once into a {@link MethodHandle}
+ * adapted to {@code () -> AbstractDTO}, so building an error response is an exact invocation
+ * instead of a reflective {@code newInstance()} with its access checks. Types without an accessible
+ * no-argument constructor fall back to {@link Class#newInstance()}.
+ */
+public final class ErrorDtoFactory {
+
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(void.class);
+    private static final MethodType FACTORY_TYPE = MethodType.methodType(AbstractDTO.class);
+    private static final ConcurrentMap<Class<?>, ErrorDtoFactory> FACTORIES = new ConcurrentHashMap<>();
+
+    private final Class<? extends AbstractDTO> type;
+    private final MethodHandle constructor;
+
+    private ErrorDtoFactory(Class<? extends AbstractDTO> type, MethodHandle constructor) {
+        this.type = type;
+        this.constructor = constructor;
+    }
+
+    /**
+     *
+     * @param returnType return type of a resource method
+     * @return shared factory of the type, null if the type is not an {@link AbstractDTO}
+     */
+    public static ErrorDtoFactory forType(Class<?> returnType) {
+        if (returnType == null || !AbstractDTO.class.isAssignableFrom(returnType)) {
+            return null;
+        }
+        ErrorDtoFactory factory = FACTORIES.get(returnType);
+        if (factory == null) {
+            ErrorDtoFactory created = new ErrorDtoFactory(returnType.asSubclass(AbstractDTO.class), findConstructor(returnType));
+            factory = FACTORIES.putIfAbsent(returnType, created);
+            if (factory == null) {
+                factory = created;
+            }
+        }
+        return factory;
+    }
+
+    private static MethodHandle findConstructor(Class<?> type) {
+        try {
+            return MethodHandles.publicLookup().findConstructor(type, CONSTRUCTOR_TYPE).asType(FACTORY_TYPE);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     *
+     * @return new empty DTO
+     * @throws Throwable thrown by the constructor
+     */
+    public AbstractDTO newInstance() throws Throwable {
+        if (constructor == null) {
+            return type.newInstance();
+        }
+        return (AbstractDTO) constructor.invokeExact();
+    }
+}
@@ -0,0 +1,136 @@
+package com.be2.services.metrics;
+
+import com.be2.logging.SystemLogger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs repeated identical errors at a limited rate.
+ * <p>
+ * Errors are identical if they are thrown in the same intercepted method, have the same class and
+ * message and their innermost cause is thrown at the same code line. Within each window the first
+ * {@code burst} errors of a kind are logged with their stack trace, the others are only counted.
+ * The next logged error of the kind is preceded by a single line with the suppressed count.
+ */
+public class ErrorLogSampler {
+
+    private static final int MAX_KINDS = 1000;
+
+    private final long windowNanos;
+    private final int burst;
+    private final ConcurrentMap<String, Kind> kinds = new ConcurrentHashMap<>();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     *
+     * @param windowMillis
+     * @param burst errors of a kind logged per window, 0 to log every error
+     */
+    public ErrorLogSampler(long windowMillis, int burst) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.burst = burst;
+    }
+
+    /**
+     *
+     * @param e
+     * @param source intercepted method, null if unknown
+     */
+    public void log(Throwable e, String source) {
+        if (burst <= 0 || windowNanos <= 0) {
+            SystemLogger.error(e);
+            return;
+        }
+        String key = source + " " + e.getClass().getName() + ": " + e.getMessage() + " at " + getOrigin(e);
+        Kind kind = kinds.get(key);
+        if (kind == null) {
+            if (kinds.size() >= MAX_KINDS) {
+                // messages with ids in them, forget the kinds instead of growing without bound
+                kinds.clear();
+            }
+            Kind created = new Kind(System.nanoTime());
+            kind = kinds.putIfAbsent(key, created);
+            if (kind == null) {
+                kind = created;
+            }
+        }
+        long suppressedBefore = kind.admit(System.nanoTime());
+        if (suppressedBefore < 0) {
+            suppressed.incrementAndGet();
+            return;
+        }
+        if (suppressedBefore > 0) {
+            SystemLogger.error(new SuppressedErrors(suppressedBefore + " identical errors suppressed: " + key));
+        }
+        SystemLogger.error(e);
+    }
+
+    /**
+     *
+     * @param e
+     * @return frame throwing the innermost cause, null if it has no stack trace
+     */
+    private static StackTraceElement getOrigin(Throwable e) {
+        Throwable root = e;
+        // bounded, a cause chain may be cyclic
+        for (int i = 0; i < 20 && root.getCause() != null && root.getCause() != root; i++) {
+            root = root.getCause();
+        }
+        StackTraceElement[] trace = root.getStackTrace();
+        return trace.length == 0 ? null : trace[0];
+    }
+
+    /**
+     *
+     * @return number of errors not logged since start
+     */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    private class Kind {
+
+        private long windowStart;
+        private int logged;
+        private long suppressed;
+
+        private Kind(long now) {
+            this.windowStart = now;
+        }
+
+        /**
+         *
+         * @param now
+         * @return errors suppressed since the last logged one, -1 if this one is suppressed too
+         */
+        private synchronized long admit(long now) {
+            if (now - windowStart >= windowNanos) {
+                windowStart = now;
+                logged = 0;
+            }
+            if (logged >= burst) {
+                suppressed++;
+                return -1;
+            }
+            logged++;
+            long count = suppressed;
+            suppressed = 0;
+            return count;
+        }
+    }
+
+    /**
+     * Summary line of suppressed errors, without stack trace.
+     */
+    private static class SuppressedErrors extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private SuppressedErrors(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.be2.services.client;
+
+import com.be2.utils.ByteBufferPool;
+import com.be2.utils.ChannelTransfer;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Request entity sending a file through a {@link FileChannel}, with a known length and without
+ * reading the file into the heap. Being repeatable, the request can be retried.
+ */
+public class FileChannelEntity extends AbstractHttpEntity {
+
+    private final Path file;
+    private final long length;
+    private final ByteBufferPool pool;
+    private final long mmapThreshold;
+
+    /**
+     *
+     * @param file
+     * @param contentType
+     * @param pool buffers of the copy
+     * @param mmapThreshold minimum file size to send from a memory mapping, 0 to never map
+     * @throws IOException
+     */
+    public FileChannelEntity(Path file, String contentType, ByteBufferPool pool, long mmapThreshold) throws IOException {
+        this.file = file;
+        this.length = Files.size(file);
+        this.pool = pool;
+        this.mmapThreshold = mmapThreshold;
+        setContentType(contentType);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        return Files.newInputStream(file);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ChannelTransfer.transfer(channel, 0, length, out, pool, mmapThreshold);
+        }
+        out.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
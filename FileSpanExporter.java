@@ -0,0 +1,82 @@
+package com.be2.services.trace;
+
+import com.be2.logging.SystemLogger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Appends one line per span to a local file, see {@link SpanRecord#toString()} for the format.
+ */
+public class FileSpanExporter implements SpanExporter {
+
+    private final File file;
+    private Writer writer;
+
+    /**
+     *
+     * @param file
+     */
+    public FileSpanExporter(File file) {
+        this.file = file;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void export(SpanRecord span) {
+        try {
+            if (writer == null) {
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            }
+            writer.write(span.toString());
+            writer.write('\n');
+        } catch (IOException e) {
+            SystemLogger.error(e);
+            close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            SystemLogger.error(e);
+            close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            SystemLogger.error(e);
+        }
+        writer = null;
+    }
+
+    @Override
+    public String toString() {
+        return "file " + file.getAbsolutePath();
+    }
+}
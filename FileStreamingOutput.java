@@ -0,0 +1,45 @@
+package com.be2.services.streaming;
+
+import com.be2.utils.ByteBufferPool;
+import com.be2.utils.ChannelTransfer;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a file to the response through a {@link FileChannel}, e.g. a stored photo, without
+ * reading it into the heap. Large files can be written from a memory mapping.
+ */
+public class FileStreamingOutput implements StreamingOutput {
+
+    private final Path file;
+    private final ByteBufferPool pool;
+    private final long mmapThreshold;
+
+    /**
+     *
+     * @param file
+     * @param pool buffers of the copy, shared by all responses
+     * @param mmapThreshold minimum file size to write from a memory mapping, 0 to never map
+     */
+    public FileStreamingOutput(Path file, ByteBufferPool pool, long mmapThreshold) {
+        this.file = file;
+        this.pool = pool;
+        this.mmapThreshold = mmapThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ChannelTransfer.transfer(channel, 0, channel.size(), output, pool, mmapThreshold);
+        }
+        output.flush();
+    }
+}
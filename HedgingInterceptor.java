@@ -0,0 +1,263 @@
+package com.be2.services.client;
+
+import com.be2.services.metrics.LatencyHistogram;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.ProxyMethodInvocation;
+
+import javax.ws.rs.GET;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hedges the {@link GET} calls of one resource: a call still running after the hedge delay is
+ * sent a second time, and whichever attempt succeeds first answers the call.
+ * <p>
+ * The hedge delay is a latency percentile of the resource, recomputed from the attempts of the
+ * last window, but not below a minimum. Hedging starts once a window has enough samples. A budget
+ * caps the hedges to a percentage of the calls.
+ * <p>
+ * Attempts run on an executor of their own, which runs nothing but attempts, so a caller waiting
+ * for its attempts never waits behind other queued work. A call the executor rejects runs inline
+ * without a hedge. The losing attempt is not interrupted: it completes in the background, its
+ * result is dropped, and the interceptors below it see its real outcome instead of a failure
+ * caused by the cancellation.
+ */
+public class HedgingInterceptor implements MethodInterceptor {
+
+    private static final int LATENCY_PRECISION_BITS = 7;
+    private static final long LATENCY_MAX_NANOS = TimeUnit.MINUTES.toNanos(2);
+    private static final long BUDGET_COST = 100;
+    private static final long BUDGET_MAX = 10 * BUDGET_COST;
+
+    private final String resource;
+    private final ExecutorService executor;
+    private final double percentile;
+    private final long budgetPercent;
+    private final long minDelayNanos;
+    private final long minSamples;
+    private final long windowNanos;
+
+    private final ConcurrentMap<Method, Boolean> hedgeable = new ConcurrentHashMap<>();
+    private final LatencyHistogram latency = new LatencyHistogram(LATENCY_PRECISION_BITS, LATENCY_MAX_NANOS);
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private volatile long delayNanos = -1;
+    private final AtomicLong budget = new AtomicLong(BUDGET_COST);
+
+    private final LongAdder hedged = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+
+    /**
+     *
+     * @param resource resource path, used in messages
+     * @param executor runs the attempts and nothing else, should hand off rather than queue
+     * @param percentile latency percentile after which a call is hedged, e.g. 95
+     * @param budgetPercent hedges allowed per 100 calls
+     * @param minDelayMillis lower bound of the hedge delay
+     * @param minSamples attempts a window needs before its percentile is used
+     * @param windowMillis how often the hedge delay is recomputed
+     */
+    public HedgingInterceptor(String resource, ExecutorService executor, double percentile, int budgetPercent,
+                              long minDelayMillis, long minSamples, long windowMillis) {
+        this.resource = resource;
+        this.executor = executor;
+        this.percentile = percentile;
+        this.budgetPercent = Math.max(0, budgetPercent);
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.minSamples = minSamples;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        if (!isHedgeable(invocation.getMethod()) || !(invocation instanceof ProxyMethodInvocation)) {
+            return invocation.proceed();
+        }
+        updateDelay();
+        long delay = delayNanos;
+        addBudget();
+        if (delay < 0) {
+            // not enough samples yet, the call is only measured
+            long start = System.nanoTime();
+            Object value = invocation.proceed();
+            latency.record(System.nanoTime() - start);
+            return value;
+        }
+        // cloned before the first attempt moves on in the interceptor chain
+        MethodInvocation hedge = ((ProxyMethodInvocation) invocation).invocableClone();
+
+        HedgedCall call = new HedgedCall();
+        try {
+            executor.submit(new Attempt(call, invocation, true));
+        } catch (RejectedExecutionException e) {
+            return invocation.proceed();
+        }
+        try {
+            return await(call.result, delay);
+        } catch (TimeoutException e) {
+            // hedge only while the first attempt is still running
+        }
+        if (!takeBudget()) {
+            budgetExhausted.increment();
+        } else if (call.pending.incrementAndGet() > 1) {
+            try {
+                executor.submit(new Attempt(call, hedge, false));
+                hedged.increment();
+            } catch (RejectedExecutionException e) {
+                call.pending.decrementAndGet();
+            }
+        }
+        return await(call.result);
+    }
+
+    private static Object await(CompletableFuture<Object> result) throws Throwable {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Object await(CompletableFuture<Object> result, long timeoutNanos) throws Throwable {
+        try {
+            return result.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    private boolean isHedgeable(Method method) {
+        Boolean get = hedgeable.get(method);
+        if (get == null) {
+            get = method.isAnnotationPresent(GET.class);
+            hedgeable.put(method, get);
+        }
+        return get;
+    }
+
+    /**
+     * Recomputes the hedge delay from the last window once the window has passed.
+     */
+    private void updateDelay() {
+        long start = windowStart.get();
+        long now = System.nanoTime();
+        if (now - start < windowNanos || !windowStart.compareAndSet(start, now)) {
+            return;
+        }
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        latency.reset();
+        if (snapshot.getCount() >= minSamples) {
+            delayNanos = Math.max(minDelayNanos, snapshot.getValueAtPercentile(percentile));
+        }
+    }
+
+    private void addBudget() {
+        long current = budget.get();
+        while (current < BUDGET_MAX && !budget.compareAndSet(current, Math.min(BUDGET_MAX, current + budgetPercent))) {
+            current = budget.get();
+        }
+    }
+
+    private boolean takeBudget() {
+        while (true) {
+            long current = budget.get();
+            if (current < BUDGET_COST) {
+                return false;
+            }
+            if (budget.compareAndSet(current, current - BUDGET_COST)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     *
+     * @return current hedge delay in microseconds, -1 while not hedging yet
+     */
+    public long getDelayMicros() {
+        long delay = delayNanos;
+        return delay < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(delay);
+    }
+
+    /**
+     *
+     * @return number of hedge attempts sent
+     */
+    public long getHedged() {
+        return hedged.sum();
+    }
+
+    /**
+     *
+     * @return number of calls answered by the hedge attempt
+     */
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    @Override
+    public String toString() {
+        return resource + " delayMicros=" + getDelayMicros()
+                + " hedged=" + getHedged()
+                + " hedgeWins=" + getHedgeWins()
+                + " budgetExhausted=" + budgetExhausted.sum();
+    }
+
+    /**
+     * State shared by the attempts of one call.
+     */
+    private static class HedgedCall {
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final AtomicBoolean failed = new AtomicBoolean();
+        private volatile Throwable firstError;
+    }
+
+    private class Attempt implements Runnable {
+
+        private final HedgedCall call;
+        private final MethodInvocation invocation;
+        private final boolean primary;
+
+        private Attempt(HedgedCall call, MethodInvocation invocation, boolean primary) {
+            this.call = call;
+            this.invocation = invocation;
+            this.primary = primary;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                Object value = invocation.proceed();
+                latency.record(System.nanoTime() - start);
+                if (call.result.complete(value) && !primary) {
+                    hedgeWins.increment();
+                }
+            } catch (Throwable e) {
+                if (call.failed.compareAndSet(false, true)) {
+                    call.firstError = e;
+                }
+                // the call fails once no attempt is left that could still succeed
+                if (call.pending.decrementAndGet() == 0) {
+                    call.result.completeExceptionally(call.firstError);
+                }
+            }
+        }
+    }
+}
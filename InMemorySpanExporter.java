@@ -0,0 +1,66 @@
+package com.be2.services.trace;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Keeps the last {@code maxSpans} spans as lines, for inspection over JMX.
+ */
+public class InMemorySpanExporter implements SpanExporter {
+
+    private final int maxSpans;
+    private final Deque<String> spans = new ArrayDeque<>();
+
+    /**
+     *
+     * @param maxSpans
+     */
+    public InMemorySpanExporter(int maxSpans) {
+        this.maxSpans = Math.max(1, maxSpans);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void export(SpanRecord span) {
+        String line = span.toString();
+        synchronized (spans) {
+            if (spans.size() == maxSpans) {
+                spans.pollFirst();
+            }
+            spans.addLast(line);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     *
+     * @return kept spans, oldest first
+     */
+    public List<String> getSpans() {
+        synchronized (spans) {
+            return new ArrayList<>(spans);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "memory " + maxSpans;
+    }
+}
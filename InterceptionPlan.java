@@ -0,0 +1,309 @@
+package com.be2.services.interception;
+
+import com.be2.services.metrics.LatencyHistogram;
+import com.be2.services.metrics.ResourceUsage;
+import com.be2.services.metrics.WindowedStats;
+import org.springframework.aop.support.AopUtils;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Precompiled interception steps of one REST resource method.
+ * <p>
+ * By default every annotation manager runs. With filtering enabled, the plan is built once per
+ * {@link Method} by scanning the annotations of the method and of the implementation method, of
+ * the same method in all supertypes, of the declaring types, of the parameters and of the fields
+ * of project types passed as arguments or returned. The decrypt and hex managers are then only run
+ * for methods that carry a matching annotation, and a project annotation no step can be matched
+ * to runs every manager. The authorization and encrypt managers always run, and so does every
+ * manager for a call passing an argument of a project type the scan has not seen, e.g. a subclass
+ * of the declared parameter type.
+ */
+public class InterceptionPlan {
+
+    private static final String ANNOTATION_PACKAGE_PREFIX = "com.be2.";
+
+    /**
+     * Annotation managers the interceptor can run, with the annotation name prefix each one handles.
+     */
+    public enum Step {
+        HEX("Hex"),
+        DECRYPT("Decrypt"),
+        SUBJECT("Subject"),
+        PRODUCT("Product"),
+        RESOURCE_ROLE("ResourceRole"),
+        ENCRYPT("Encrypt");
+
+        /**
+         * Authorization checks and the encryption of the result, never skipped whatever the
+         * annotations found.
+         */
+        static final Set<Step> ALWAYS = EnumSet.of(SUBJECT, PRODUCT, RESOURCE_ROLE, ENCRYPT);
+
+        private final String annotationPrefix;
+
+        Step(String annotationPrefix) {
+            this.annotationPrefix = annotationPrefix;
+        }
+    }
+
+    private final Method method;
+    private final String source;
+    private final EnumSet<Step> steps;
+    private final Set<Class<?>> scannedTypes;
+    private final LatencyHistogram latency;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final WindowedStats resourceStats;
+    private final ResourceUsage usage = new ResourceUsage();
+    private final ErrorDtoFactory errorDtoFactory;
+
+    private InterceptionPlan(Method method, EnumSet<Step> steps, Set<Class<?>> scannedTypes, LatencyHistogram latency,
+                             AdaptiveConcurrencyLimiter limiter, WindowedStats resourceStats) {
+        this.method = method;
+        this.source = method.getDeclaringClass().getName() + "." + method.getName();
+        this.steps = steps;
+        this.scannedTypes = scannedTypes;
+        this.latency = latency;
+        this.limiter = limiter;
+        this.resourceStats = resourceStats;
+        this.errorDtoFactory = ErrorDtoFactory.forType(method.getReturnType());
+    }
+
+    /**
+     *
+     * @param method resolved resource method
+     * @param targetClass class of the called object, null if unknown
+     * @param filterSteps false to run every annotation manager regardless of annotations
+     * @param latency histogram the interceptor records the method latency to
+     * @param limiter concurrency limiter of the resource class, null for no limit
+     * @param resourceStats windowed statistics of the resource class
+     * @return plan
+     */
+    public static InterceptionPlan create(Method method, Class<?> targetClass, boolean filterSteps, LatencyHistogram latency,
+                                   AdaptiveConcurrencyLimiter limiter, WindowedStats resourceStats) {
+        if (!filterSteps) {
+            return new InterceptionPlan(method, EnumSet.allOf(Step.class), null, latency, limiter, resourceStats);
+        }
+        Set<Class<?>> scannedTypes = new HashSet<>();
+        EnumSet<Step> steps = findSteps(method, targetClass, scannedTypes);
+        return new InterceptionPlan(method, steps, scannedTypes, latency, limiter, resourceStats);
+    }
+
+    private static EnumSet<Step> findSteps(Method method, Class<?> targetClass, Set<Class<?>> scannedTypes) {
+        Set<Method> declarations = findDeclarations(method);
+        if (targetClass != null) {
+            declarations.addAll(findDeclarations(AopUtils.getMostSpecificMethod(method, targetClass)));
+        }
+        Set<Class<? extends Annotation>> annotations = new HashSet<>();
+        for (Method declared : declarations) {
+            collect(declared.getAnnotations(), annotations);
+            collect(declared.getDeclaringClass().getAnnotations(), annotations);
+            for (Annotation[] parameterAnnotations : declared.getParameterAnnotations()) {
+                collect(parameterAnnotations, annotations);
+            }
+            for (Type parameterType : declared.getGenericParameterTypes()) {
+                collectFields(parameterType, annotations, scannedTypes);
+            }
+            collectFields(declared.getGenericReturnType(), annotations, scannedTypes);
+        }
+
+        EnumSet<Step> steps = EnumSet.copyOf(Step.ALWAYS);
+        for (Class<? extends Annotation> annotation : annotations) {
+            Step step = findStep(annotation);
+            if (step == null) {
+                return EnumSet.allOf(Step.class);
+            }
+            steps.add(step);
+        }
+        return steps;
+    }
+
+    private static void collect(Annotation[] found, Set<Class<? extends Annotation>> annotations) {
+        for (Annotation annotation : found) {
+            Class<? extends Annotation> type = annotation.annotationType();
+            if (type.getName().startsWith(ANNOTATION_PACKAGE_PREFIX)) {
+                annotations.add(type);
+            }
+        }
+    }
+
+    /**
+     * Collects the annotations of a project type passed as argument or returned and of its fields,
+     * following arrays, type arguments like the element type of a list, and the types of the fields.
+     *
+     * @param type
+     * @param annotations
+     * @param scanned types already scanned
+     */
+    private static void collectFields(Type type, Set<Class<? extends Annotation>> annotations, Set<Class<?>> scanned) {
+        if (type instanceof ParameterizedType) {
+            collectFields(((ParameterizedType) type).getRawType(), annotations, scanned);
+            for (Type argument : ((ParameterizedType) type).getActualTypeArguments()) {
+                collectFields(argument, annotations, scanned);
+            }
+            return;
+        }
+        if (type instanceof GenericArrayType) {
+            collectFields(((GenericArrayType) type).getGenericComponentType(), annotations, scanned);
+            return;
+        }
+        if (!(type instanceof Class)) {
+            return;
+        }
+        Class<?> clazz = (Class<?>) type;
+        if (clazz.isArray()) {
+            collectFields(clazz.getComponentType(), annotations, scanned);
+            return;
+        }
+        if (!clazz.getName().startsWith(ANNOTATION_PACKAGE_PREFIX) || !scanned.add(clazz)) {
+            return;
+        }
+        for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+            collect(current.getAnnotations(), annotations);
+            for (Field field : current.getDeclaredFields()) {
+                collect(field.getAnnotations(), annotations);
+                collectFields(field.getGenericType(), annotations, scanned);
+            }
+        }
+    }
+
+    private static Step findStep(Class<? extends Annotation> annotation) {
+        Step match = null;
+        for (Step step : Step.values()) {
+            if (annotation.getSimpleName().startsWith(step.annotationPrefix)
+                    && (match == null || step.annotationPrefix.length() > match.annotationPrefix.length())) {
+                match = step;
+            }
+        }
+        return match;
+    }
+
+    /**
+     *
+     * @param method
+     * @return the method and every declaration of the same signature in its supertypes
+     */
+    private static Set<Method> findDeclarations(Method method) {
+        Set<Method> declarations = new HashSet<>();
+        declarations.add(method);
+        Set<Class<?>> visited = new HashSet<>();
+        Deque<Class<?>> types = new ArrayDeque<>();
+        types.add(method.getDeclaringClass());
+        while (!types.isEmpty()) {
+            Class<?> type = types.poll();
+            if (type == Object.class || !visited.add(type)) {
+                continue;
+            }
+            try {
+                declarations.add(type.getDeclaredMethod(method.getName(), method.getParameterTypes()));
+            } catch (NoSuchMethodException e) {
+                // not declared on this type
+            }
+            if (type.getSuperclass() != null) {
+                types.add(type.getSuperclass());
+            }
+            types.addAll(Arrays.asList(type.getInterfaces()));
+        }
+        return declarations;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     *
+     * @return declaring class name and method name, as logged and alerted
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     *
+     * @param step
+     * @return true if the annotation manager of the step has to run for this method
+     */
+    public boolean applies(Step step) {
+        return steps.contains(step);
+    }
+
+    /**
+     *
+     * @param args arguments of the call
+     * @return true if the steps of the plan cover the arguments, false if an argument is of a
+     * project type the scan has not seen and every annotation manager has to run
+     */
+    public boolean covers(Object[] args) {
+        if (scannedTypes == null) {
+            return true;
+        }
+        for (Object arg : args) {
+            if (arg != null && arg.getClass().getName().startsWith(ANNOTATION_PACKAGE_PREFIX)
+                    && !scannedTypes.contains(arg.getClass())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     *
+     * @return concurrency limiter of the resource class, null if calls are not limited
+     */
+    public AdaptiveConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     *
+     * @return windowed statistics shared by all methods of the resource class
+     */
+    public WindowedStats getResourceStats() {
+        return resourceStats;
+    }
+
+    /**
+     *
+     * @return factory of the error response, null if the method does not return an AbstractDTO
+     */
+    public ErrorDtoFactory getErrorDtoFactory() {
+        return errorDtoFactory;
+    }
+
+    /**
+     *
+     * @return CPU time and allocations of the method, recorded if resource accounting is enabled
+     */
+    public ResourceUsage getUsage() {
+        return usage;
+    }
+
+    @Override
+    public String toString() {
+        return "steps=" + steps;
+    }
+}
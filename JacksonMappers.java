@@ -0,0 +1,91 @@
+package com.be2.services.client;
+
+import com.be2.utils.JSONUtils;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.module.afterburner.AfterburnerModule;
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.smile.SmileFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Jackson configuration shared by the {@link ServicesClient} providers, streams and token requests.
+ * <p>
+ * JSON is read and written with the services' own Jackson 1 mapper ({@link JSONUtils#getMapper()}),
+ * so the {@code org.codehaus.jackson} annotations of the DTOs apply to every call, streamed or not.
+ * Smile is read with a copy of that mapper's configuration and deserializers. CBOR has no Jackson 1 implementation and uses a Jackson 2
+ * mapper, which does not see the Jackson 1 annotations: only resources whose DTOs need none may
+ * be answered in CBOR. Readers are cached per type, so the type lookup of a call is a map hit.
+ * Mappers and readers are thread safe.
+ */
+public class JacksonMappers {
+
+    private final ObjectMapper json;
+    private final ObjectMapper smile;
+    private final com.fasterxml.jackson.databind.ObjectMapper cbor;
+    private final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param afterburner false to keep reflective property access in the CBOR mapper, e.g. for debugging
+     */
+    public JacksonMappers(boolean afterburner) {
+        this.json = JSONUtils.getMapper();
+        this.smile = new ObjectMapper(new SmileFactory(), json.getSerializerProvider(), json.getDeserializerProvider(),
+                json.copySerializationConfig(), json.copyDeserializationConfig());
+        this.cbor = new com.fasterxml.jackson.databind.ObjectMapper(new CBORFactory());
+        // new properties of the services must not break older clients
+        smile.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        cbor.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        cbor.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+        if (afterburner) {
+            cbor.registerModule(new AfterburnerModule());
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    public ObjectMapper getJsonMapper() {
+        return json;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public ObjectMapper getSmileMapper() {
+        return smile;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public com.fasterxml.jackson.databind.ObjectMapper getCborMapper() {
+        return cbor;
+    }
+
+    /**
+     *
+     * @param type
+     * @return cached JSON reader of the type
+     */
+    public ObjectReader readerFor(Class<?> type) {
+        ObjectReader reader = readers.get(type);
+        if (reader == null) {
+            ObjectReader created = json.reader(type);
+            reader = readers.putIfAbsent(type, created);
+            if (reader == null) {
+                reader = created;
+            }
+        }
+        return reader;
+    }
+}
@@ -0,0 +1,65 @@
+package com.be2.services.client;
+
+import org.codehaus.jackson.map.MappingIterator;
+import org.codehaus.jackson.map.ObjectReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+/**
+ * Reads the records of a streamed JSON response one at a time, so only the current record is in
+ * memory. The body may be a JSON array or a sequence of JSON values. Must be closed, closing
+ * before the last record aborts the request.
+ *
+ * @param <T> record type
+ */
+public class JsonRecordIterator<T> implements Iterator<T>, Closeable {
+
+    private final InputStream content;
+    private final MappingIterator<T> records;
+
+    /**
+     *
+     * @param content response body
+     * @param reader reader of the record type
+     * @throws IOException
+     */
+    public JsonRecordIterator(InputStream content, ObjectReader reader) throws IOException {
+        this.content = content;
+        this.records = reader.readValues(content);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() {
+        return records.hasNext();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T next() {
+        return records.next();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        content.close();
+    }
+}
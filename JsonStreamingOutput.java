@@ -0,0 +1,110 @@
+package com.be2.services.streaming;
+
+import com.be2.utils.JSONUtils;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Writes records as a JSON array while they are read, for responses too large to build in memory.
+ * <p>
+ * Return it, or a {@code Response} carrying it, from a resource method. Without a content length
+ * the container sends the response chunked. Records are written with the services' mapper
+ * ({@link JSONUtils#getMapper()}) unless another is given, so they render as in a regular
+ * response. The output is flushed every {@code flushEvery} records, so the client can start
+ * reading before the export is complete. The record iterator is closed at the end if it is
+ * {@link Closeable}, e.g. a database cursor.
+ */
+public class JsonStreamingOutput implements StreamingOutput {
+
+    private final Iterator<?> records;
+    private final ObjectMapper mapper;
+    private final int flushEvery;
+
+    /**
+     *
+     * @param records
+     */
+    public JsonStreamingOutput(Iterator<?> records) {
+        this(records, JSONUtils.getMapper(), 1000);
+    }
+
+    /**
+     *
+     * @param records
+     * @param mapper
+     * @param flushEvery records written between flushes
+     */
+    public JsonStreamingOutput(Iterator<?> records, ObjectMapper mapper, int flushEvery) {
+        this.records = records;
+        this.mapper = mapper;
+        this.flushEvery = Math.max(1, flushEvery);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(OutputStream output) throws IOException {
+        // the mapper may flush after every value, only every flushEvery records reach the container
+        FlushGate gate = new FlushGate(output);
+        JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(gate, JsonEncoding.UTF8);
+        // the container closes the response stream
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        try {
+            generator.writeStartArray();
+            int written = 0;
+            while (records.hasNext()) {
+                mapper.writeValue(generator, records.next());
+                if (++written % flushEvery == 0) {
+                    gate.open = true;
+                    generator.flush();
+                    gate.open = false;
+                }
+            }
+            generator.writeEndArray();
+            gate.open = true;
+        } finally {
+            generator.close();
+            if (records instanceof Closeable) {
+                ((Closeable) records).close();
+            }
+        }
+    }
+
+    /**
+     * Passes writes through and flushes only while open.
+     */
+    private static class FlushGate extends FilterOutputStream {
+
+        private boolean open;
+
+        private FlushGate(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (open) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() {
+            // the container closes the response stream
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.be2.services.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of latency values.
+ * <p>
+ * Values below {@code 2^precisionBits} are counted exactly, larger values fall into buckets whose
+ * width grows with the magnitude of the value, so the relative error of a reported percentile stays
+ * below {@code 1 / 2^(precisionBits - 1)}. Recording is a single atomic increment and does not allocate.
+ */
+public class LatencyHistogram {
+
+    private final int precisionBits;
+    private final int subBucketCount;
+    private final int subBucketHalfCount;
+    private final long maxTrackableValue;
+    private final AtomicLongArray counts;
+
+    /**
+     *
+     * @param precisionBits number of bits of precision kept for every value
+     * @param maxTrackableValue values above are recorded as this value
+     */
+    public LatencyHistogram(int precisionBits, long maxTrackableValue) {
+        if (precisionBits < 2 || precisionBits > 16) {
+            throw new IllegalArgumentException("precisionBits must be between 2 and 16: " + precisionBits);
+        }
+        if (maxTrackableValue < 1) {
+            throw new IllegalArgumentException("maxTrackableValue must be positive: " + maxTrackableValue);
+        }
+        this.precisionBits = precisionBits;
+        this.subBucketCount = 1 << precisionBits;
+        this.subBucketHalfCount = subBucketCount >> 1;
+        this.maxTrackableValue = maxTrackableValue;
+        this.counts = new AtomicLongArray(indexOf(maxTrackableValue) + 1);
+    }
+
+    /**
+     *
+     * @param value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > maxTrackableValue) {
+            value = maxTrackableValue;
+        }
+        counts.incrementAndGet(indexOf(value));
+    }
+
+    /**
+     * Copies the current counts. Recording may continue concurrently, the snapshot is
+     * then not exact but every bucket is read atomically.
+     *
+     * @return snapshot
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total);
+    }
+
+    /**
+     * Clears all counts. Values recorded concurrently may survive the reset or be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            if (counts.get(i) != 0) {
+                counts.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * Adds the current counts to {@code target}, which must come from {@link #newCounts()} of a
+     * histogram with the same precision and maximum.
+     *
+     * @param target
+     */
+    void addCountsTo(long[] target) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] += counts.get(i);
+        }
+    }
+
+    /**
+     *
+     * @return empty counts array to merge histograms into
+     */
+    long[] newCounts() {
+        return new long[counts.length()];
+    }
+
+    /**
+     *
+     * @param merged counts built with {@link #addCountsTo(long[])}
+     * @return snapshot of the merged counts
+     */
+    Snapshot snapshotOf(long[] merged) {
+        long total = 0;
+        for (long count : merged) {
+            total += count;
+        }
+        return new Snapshot(merged, total);
+    }
+
+    private int indexOf(long value) {
+        if (value < subBucketCount) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (precisionBits - 1);
+        return shift * subBucketHalfCount + (int) (value >>> shift);
+    }
+
+    private long highestValueAt(int index) {
+        if (index < subBucketCount) {
+            return index;
+        }
+        int shift = index / subBucketHalfCount - 1;
+        long subBucket = index - shift * subBucketHalfCount;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Point-in-time copy of a {@link LatencyHistogram}.
+     */
+    public class Snapshot {
+
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(long[] counts, long total) {
+            this.counts = counts;
+            this.total = total;
+        }
+
+        /**
+         *
+         * @return
+         */
+        public long getCount() {
+            return total;
+        }
+
+        /**
+         *
+         * @param percentile between 0 and 100
+         * @return highest value of the bucket holding the percentile, 0 for an empty histogram
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            double p = Math.min(Math.max(percentile, 0.0), 100.0);
+            long rank = Math.max(1, (long) Math.ceil(p / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueAt(i), maxTrackableValue);
+                }
+            }
+            return getMax();
+        }
+
+        /**
+         *
+         * @return
+         */
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] != 0) {
+                    return Math.min(highestValueAt(i), maxTrackableValue);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.be2.services.streaming;
+
+import com.be2.services.metrics.StreamTimings;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Wraps the {@link StreamingOutput} returned by a resource method to measure the time to its
+ * first byte and its total time. The intercepted call only covers building the output, the
+ * writing happens after the call has returned.
+ */
+public class MeasuredStreamingOutput implements StreamingOutput {
+
+    private final StreamingOutput delegate;
+    private final StreamTimings timings;
+    private final long startNanos;
+
+    /**
+     *
+     * @param delegate
+     * @param timings
+     * @param startNanos {@link System#nanoTime()} at the start of the intercepted call
+     */
+    public MeasuredStreamingOutput(StreamingOutput delegate, StreamTimings timings, long startNanos) {
+        this.delegate = delegate;
+        this.timings = timings;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        CountingOutputStream counting = new CountingOutputStream(output);
+        boolean error = true;
+        try {
+            delegate.write(counting);
+            error = false;
+        } finally {
+            long firstByte = counting.firstByteNanos < 0 ? -1 : counting.firstByteNanos - startNanos;
+            timings.record(firstByte, System.nanoTime() - startNanos, counting.count, error);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long firstByteNanos = -1;
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            written(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            written(len);
+            out.write(b, off, len);
+        }
+
+        private void written(int len) {
+            if (firstByteNanos < 0 && len > 0) {
+                firstByteNanos = System.nanoTime();
+            }
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.be2.services.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects concurrent single-entity lookups into bulk calls.
+ * <p>
+ * A batch is sent when it holds {@code maxBatchSize} keys or when {@code windowMicros} have passed
+ * since its first key, whichever comes first. A key that is already being looked up is not added
+ * again, its callers share the pending result.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class RequestBatcher<K, V> {
+
+    /**
+     * Makes the bulk call.
+     *
+     * @param <K>
+     * @param <V>
+     */
+    public interface BulkLoader<K, V> {
+
+        /**
+         *
+         * @param keys distinct keys of one batch
+         * @return values by key, keys without value complete with null
+         * @throws Exception fails every lookup of the batch
+         */
+        Map<K, V> load(List<K> keys) throws Exception;
+    }
+
+    private final BulkLoader<K, V> loader;
+    private final long windowMicros;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Object lock = new Object();
+    private List<K> pending = new ArrayList<>();
+    private long generation;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder merged = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    /**
+     *
+     * @param loader
+     * @param windowMicros how long the first key of a batch waits for more keys
+     * @param maxBatchSize
+     * @param scheduler closes the batch windows
+     * @param executor makes the bulk calls, not one whose tasks wait in {@link #get}: they could
+     * hold every thread while the bulk call they wait for is queued
+     */
+    public RequestBatcher(BulkLoader<K, V> loader, long windowMicros, int maxBatchSize,
+                          ScheduledExecutorService scheduler, Executor executor) {
+        this.loader = loader;
+        this.windowMicros = windowMicros;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.scheduler = scheduler;
+        this.executor = executor;
+    }
+
+    /**
+     *
+     * @param key
+     * @return value of the key
+     */
+    public V get(K key) {
+        try {
+            return getAsync(key).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     *
+     * @param key
+     * @return future completed when the batch holding the key was loaded
+     */
+    public CompletableFuture<V> getAsync(K key) {
+        lookups.increment();
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            merged.increment();
+            return existing;
+        }
+
+        List<K> full = null;
+        long scheduleGeneration = -1;
+        synchronized (lock) {
+            pending.add(key);
+            if (pending.size() >= maxBatchSize) {
+                full = pending;
+                pending = new ArrayList<>();
+                generation++;
+            } else if (pending.size() == 1) {
+                scheduleGeneration = generation;
+            }
+        }
+        if (full != null) {
+            dispatch(full);
+        } else if (scheduleGeneration >= 0) {
+            final long batchGeneration = scheduleGeneration;
+            try {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(batchGeneration);
+                    }
+                }, windowMicros, TimeUnit.MICROSECONDS);
+            } catch (RejectedExecutionException e) {
+                flush(batchGeneration);
+            }
+        }
+        return future;
+    }
+
+    private void flush(long batchGeneration) {
+        List<K> batch;
+        synchronized (lock) {
+            // the batch was already sent because it became full
+            if (batchGeneration != generation || pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+            generation++;
+        }
+        dispatch(batch);
+    }
+
+    private void dispatch(final List<K> batch) {
+        batches.increment();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    load(batch);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            fail(batch, e);
+        }
+    }
+
+    private void load(List<K> batch) {
+        Map<K, V> values;
+        try {
+            values = loader.load(batch);
+        } catch (Throwable e) {
+            fail(batch, e);
+            return;
+        }
+        for (K key : batch) {
+            CompletableFuture<V> future = inFlight.remove(key);
+            if (future != null) {
+                future.complete(values == null ? null : values.get(key));
+            }
+        }
+    }
+
+    private void fail(List<K> batch, Throwable e) {
+        for (K key : batch) {
+            CompletableFuture<V> future = inFlight.remove(key);
+            if (future != null) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     *
+     * @return number of lookups
+     */
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    /**
+     *
+     * @return number of lookups that joined a pending lookup of the same key
+     */
+    public long getMerged() {
+        return merged.sum();
+    }
+
+    /**
+     *
+     * @return number of bulk calls
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+}
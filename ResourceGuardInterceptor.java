@@ -0,0 +1,197 @@
+package com.be2.services.client;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.jboss.resteasy.client.ClientResponseFailure;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bulkhead and circuit breaker of one resource.
+ * <p>
+ * The bulkhead limits the concurrent calls of the resource, so a slow resource cannot take all
+ * pooled connections. The circuit breaker opens after {@code failureThreshold} consecutive failures
+ * and rejects calls for {@code openMillis}, then lets a single probe call through: its success
+ * closes the breaker, its failure opens it again. Client errors (4xx) do not count as failures.
+ * Rejections throw a preallocated {@link ResourceUnavailableException}.
+ */
+public class ResourceGuardInterceptor implements MethodInterceptor {
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+    private static final String[] STATE_NAMES = {"CLOSED", "OPEN", "HALF_OPEN"};
+
+    private final String resource;
+    private final int maxConcurrent;
+    private final Semaphore bulkhead;
+    private final long bulkheadWaitMillis;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final ResourceUnavailableException bulkheadFull;
+    private final ResourceUnavailableException circuitOpen;
+
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openedAt;
+
+    private final LongAdder bulkheadRejections = new LongAdder();
+    private final LongAdder circuitRejections = new LongAdder();
+
+    /**
+     *
+     * @param resource resource path, used in messages
+     * @param maxConcurrent concurrent call limit, 0 for no bulkhead
+     * @param bulkheadWaitMillis how long a call waits for the bulkhead
+     * @param failureThreshold consecutive failures opening the breaker, 0 for no breaker
+     * @param openMillis how long an open breaker rejects calls before a probe
+     */
+    public ResourceGuardInterceptor(String resource, int maxConcurrent, long bulkheadWaitMillis,
+                                    int failureThreshold, long openMillis) {
+        this.resource = resource;
+        this.maxConcurrent = maxConcurrent;
+        this.bulkhead = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+        this.bulkheadWaitMillis = bulkheadWaitMillis;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.bulkheadFull = new ResourceUnavailableException("Bulkhead full: " + resource);
+        this.circuitOpen = new ResourceUnavailableException("Circuit open: " + resource);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        if (!allowCall()) {
+            circuitRejections.increment();
+            throw circuitOpen;
+        }
+        if (bulkhead != null) {
+            boolean acquired;
+            try {
+                acquired = acquireBulkhead();
+            } catch (InterruptedException e) {
+                releaseProbe();
+                Thread.currentThread().interrupt();
+                throw e;
+            }
+            if (!acquired) {
+                releaseProbe();
+                bulkheadRejections.increment();
+                throw bulkheadFull;
+            }
+        }
+        try {
+            Object result = invocation.proceed();
+            onSuccess();
+            return result;
+        } catch (ClientResponseFailure e) {
+            if (e.getResponse() != null && e.getResponse().getStatus() < 500) {
+                onSuccess();
+            } else {
+                onFailure();
+            }
+            throw e;
+        } catch (Throwable e) {
+            onFailure();
+            throw e;
+        } finally {
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+        }
+    }
+
+    private boolean acquireBulkhead() throws InterruptedException {
+        return bulkheadWaitMillis > 0
+                ? bulkhead.tryAcquire(bulkheadWaitMillis, TimeUnit.MILLISECONDS)
+                : bulkhead.tryAcquire();
+    }
+
+    private boolean allowCall() {
+        if (failureThreshold <= 0) {
+            return true;
+        }
+        int current = state.get();
+        if (current == CLOSED) {
+            return true;
+        }
+        // only one caller wins the transition and makes the probe call
+        return current == OPEN
+                && System.currentTimeMillis() - openedAt >= openMillis
+                && state.compareAndSet(OPEN, HALF_OPEN);
+    }
+
+    /**
+     * Reopens the breaker when the probe call could not be made.
+     */
+    private void releaseProbe() {
+        if (state.get() == HALF_OPEN) {
+            openedAt = System.currentTimeMillis() - openMillis;
+            state.compareAndSet(HALF_OPEN, OPEN);
+        }
+    }
+
+    private void onSuccess() {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+        if (state.get() == HALF_OPEN) {
+            state.compareAndSet(HALF_OPEN, CLOSED);
+        }
+    }
+
+    private void onFailure() {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        if (state.get() == HALF_OPEN) {
+            openedAt = System.currentTimeMillis();
+            state.compareAndSet(HALF_OPEN, OPEN);
+        } else if (consecutiveFailures.incrementAndGet() >= failureThreshold && state.get() == CLOSED) {
+            openedAt = System.currentTimeMillis();
+            if (state.compareAndSet(CLOSED, OPEN)) {
+                consecutiveFailures.set(0);
+            }
+        }
+    }
+
+    /**
+     *
+     * @return CLOSED, OPEN or HALF_OPEN
+     */
+    public String getState() {
+        return STATE_NAMES[state.get()];
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getBulkheadRejections() {
+        return bulkheadRejections.sum();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getCircuitRejections() {
+        return circuitRejections.sum();
+    }
+
+    @Override
+    public String toString() {
+        return resource + " state=" + getState()
+                + " inFlight=" + (bulkhead == null ? "-" : String.valueOf(maxConcurrent - bulkhead.availablePermits()))
+                + " bulkheadRejections=" + getBulkheadRejections()
+                + " circuitRejections=" + getCircuitRejections();
+    }
+}
@@ -0,0 +1,20 @@
+package com.be2.services.client;
+
+/**
+ * Thrown instead of calling a resource whose bulkhead is full or whose circuit breaker is open.
+ * <p>
+ * Instances are created once per resource and reason and carry no stack trace, so rejecting
+ * a call does not allocate.
+ */
+public class ResourceUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     *
+     * @param message
+     */
+    public ResourceUnavailableException(String message) {
+        super(message, null, false, false);
+    }
+}
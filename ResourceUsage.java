@@ -0,0 +1,64 @@
+package com.be2.services.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread CPU time and allocated bytes summed over the accounted calls of one method.
+ */
+public class ResourceUsage {
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder cpuNanos = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+
+    /**
+     *
+     * @param cpuNanos CPU time of the call, negative if not measured
+     * @param allocatedBytes bytes allocated by the call, negative if not measured
+     */
+    public void record(long cpuNanos, long allocatedBytes) {
+        calls.increment();
+        if (cpuNanos > 0) {
+            this.cpuNanos.add(cpuNanos);
+        }
+        if (allocatedBytes > 0) {
+            this.allocatedBytes.add(allocatedBytes);
+        }
+    }
+
+    /**
+     *
+     * @return number of accounted calls
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getCpuNanos() {
+        return cpuNanos.sum();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    @Override
+    public String toString() {
+        long count = getCalls();
+        long cpu = getCpuNanos();
+        long allocated = getAllocatedBytes();
+        return "calls=" + count
+                + " cpuNanos=" + cpu
+                + " avgCpuNanos=" + (count == 0 ? 0 : cpu / count)
+                + " allocatedBytes=" + allocated
+                + " avgAllocatedBytes=" + (count == 0 ? 0 : allocated / count);
+    }
+}
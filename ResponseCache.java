@@ -0,0 +1,230 @@
+package com.be2.services.client;
+
+import com.be2.logging.SystemLogger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded LRU cache of resource responses with a time to live per entry.
+ * <p>
+ * Concurrent misses for the same key wait for a single load. An expired entry is still served
+ * for {@code staleMillis} while one background load replaces it (stale-while-revalidate).
+ * Only responses the loader accepts as {@link Loader#isCacheable cacheable} are stored, a failed
+ * reload keeps the stale entry. Cached objects are shared between callers and must not be modified.
+ * <p>
+ * Entries are spread over striped access-ordered maps by key hash, so concurrent hits on
+ * different keys rarely contend; each stripe evicts its own least recently used entry.
+ */
+public class ResponseCache {
+
+    /**
+     * Loads the value of a missing or expired entry.
+     */
+    public interface Loader {
+
+        /**
+         *
+         * @return loaded value
+         * @throws Throwable
+         */
+        Object load() throws Throwable;
+
+        /**
+         *
+         * @param value loaded value
+         * @return true if the value may be served to later callers, false for e.g. error responses
+         */
+        boolean isCacheable(Object value);
+
+        /**
+         *
+         * @return loader that can still run after the calling thread has moved on
+         */
+        Loader detach();
+    }
+
+    private static final int STRIPES = 16;
+
+    private final long staleMillis;
+    private final Executor refreshExecutor;
+    private final Map<Object, Entry>[] stripes;
+    private final ConcurrentMap<Object, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     *
+     * @param maxEntries
+     * @param staleMillis how long an expired entry is served while it is reloaded, 0 to disable
+     * @param refreshExecutor runs the background reloads
+     */
+    @SuppressWarnings("unchecked")
+    public ResponseCache(int maxEntries, long staleMillis, Executor refreshExecutor) {
+        this.staleMillis = staleMillis;
+        this.refreshExecutor = refreshExecutor;
+        final int maxStripeEntries = Math.max(1, (maxEntries + STRIPES - 1) / STRIPES);
+        this.stripes = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, ResponseCache.Entry> eldest) {
+                    if (size() > maxStripeEntries) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    private Map<Object, Entry> stripe(Object key) {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     *
+     * @param key
+     * @param ttlMillis time to live of a loaded entry
+     * @param loader loads the value on a miss, detached when a stale entry is reloaded in the background
+     * @return cached or loaded value
+     * @throws Throwable thrown by the loader
+     */
+    public Object get(Object key, long ttlMillis, Loader loader) throws Throwable {
+        Map<Object, Entry> stripe = stripe(key);
+        Entry entry;
+        synchronized (stripe) {
+            entry = stripe.get(key);
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null && now < entry.expiresAt) {
+            hits.increment();
+            return entry.value;
+        }
+        if (entry != null && now < entry.expiresAt + staleMillis) {
+            staleHits.increment();
+            refresh(key, ttlMillis, loader);
+            return entry.value;
+        }
+        misses.increment();
+        return load(key, ttlMillis, loader);
+    }
+
+    private Object load(Object key, long ttlMillis, Loader loader) throws Throwable {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = loading.putIfAbsent(key, future);
+        if (inFlight != null) {
+            try {
+                return inFlight.get();
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            }
+        }
+        try {
+            Object value = loader.load();
+            if (value != null && loader.isCacheable(value)) {
+                Map<Object, Entry> stripe = stripe(key);
+                synchronized (stripe) {
+                    stripe.put(key, new Entry(value, System.currentTimeMillis() + ttlMillis));
+                }
+            }
+            future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    private void refresh(final Object key, final long ttlMillis, Loader callerLoader) {
+        if (loading.containsKey(key)) {
+            return;
+        }
+        final Loader loader = callerLoader.detach();
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load(key, ttlMillis, loader);
+                    } catch (Throwable e) {
+                        SystemLogger.error(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            SystemLogger.error(e);
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getSize() {
+        int size = 0;
+        for (Map<Object, Entry> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    private static class Entry {
+
+        private final Object value;
+        private final long expiresAt;
+
+        private Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
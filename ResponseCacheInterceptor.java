@@ -0,0 +1,156 @@
+package com.be2.services.client;
+
+import com.be2.services.dto.AbstractDTO;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.ProxyMethodInvocation;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Serves resource calls from a {@link ResponseCache} for the methods configured with a time to live.
+ * <p>
+ * Methods are configured as {@code Resource.method} or {@code Resource.*}, e.g.
+ * {@code StaticResource.*=3600000,ProductResource.getProducts=60000}.
+ * <p>
+ * The services answer errors with a result code in a regular response, so a response is only
+ * cached if its result code is missing or one of the success codes.
+ */
+public class ResponseCacheInterceptor implements MethodInterceptor {
+
+    private static final long NOT_CACHED = -1;
+
+    private final ResponseCache cache;
+    private final Map<String, Long> ttlByMethod;
+    private final Set<String> successCodes;
+    private final ConcurrentMap<Method, Long> resolvedTtl = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param cache
+     * @param ttlByMethod time to live in millis by {@code Resource.method} or {@code Resource.*}
+     * @param successCodes result codes of successful responses, as strings
+     */
+    public ResponseCacheInterceptor(ResponseCache cache, Map<String, Long> ttlByMethod, Set<String> successCodes) {
+        this.cache = cache;
+        this.ttlByMethod = ttlByMethod;
+        this.successCodes = successCodes;
+    }
+
+    /**
+     *
+     * @param clazz resource interface
+     * @return true if any method of the resource is cached
+     */
+    public boolean isCached(Class<?> clazz) {
+        for (Method method : clazz.getMethods()) {
+            if (getTtl(method) != NOT_CACHED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        long ttl = getTtl(invocation.getMethod());
+        if (ttl == NOT_CACHED || !(invocation instanceof ProxyMethodInvocation)) {
+            return invocation.proceed();
+        }
+        return cache.get(
+                new CacheKey(invocation.getMethod(), invocation.getArguments()),
+                ttl,
+                new InvocationLoader(invocation, successCodes)
+        );
+    }
+
+    private long getTtl(Method method) {
+        Long ttl = resolvedTtl.get(method);
+        if (ttl == null) {
+            String resource = method.getDeclaringClass().getSimpleName();
+            ttl = ttlByMethod.get(resource + "." + method.getName());
+            if (ttl == null) {
+                ttl = ttlByMethod.get(resource + ".*");
+            }
+            if (ttl == null || ttl <= 0) {
+                ttl = NOT_CACHED;
+            }
+            resolvedTtl.put(method, ttl);
+        }
+        return ttl;
+    }
+
+    /**
+     * Loads a response by proceeding with the resource call.
+     */
+    private static class InvocationLoader implements ResponseCache.Loader {
+
+        private final MethodInvocation invocation;
+        private final Set<String> successCodes;
+
+        private InvocationLoader(MethodInvocation invocation, Set<String> successCodes) {
+            this.invocation = invocation;
+            this.successCodes = successCodes;
+        }
+
+        @Override
+        public Object load() throws Throwable {
+            return invocation.proceed();
+        }
+
+        @Override
+        public boolean isCacheable(Object value) {
+            if (!(value instanceof AbstractDTO)) {
+                return true;
+            }
+            Object resultCode = ((AbstractDTO) value).getResultCode();
+            return resultCode == null || successCodes.contains(String.valueOf(resultCode));
+        }
+
+        @Override
+        public ResponseCache.Loader detach() {
+            return new InvocationLoader(((ProxyMethodInvocation) invocation).invocableClone(), successCodes);
+        }
+    }
+
+    /**
+     * Method and arguments of a call, compared by value.
+     */
+    private static class CacheKey {
+
+        private final Method method;
+        private final Object[] arguments;
+        private final int hash;
+
+        private CacheKey(Method method, Object[] arguments) {
+            this.method = method;
+            this.arguments = arguments == null ? new Object[0] : arguments.clone();
+            this.hash = 31 * method.hashCode() + Arrays.deepHashCode(this.arguments);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return hash == other.hash && method.equals(other.method) && Arrays.deepEquals(arguments, other.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.be2.services.client;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Body of a streamed response. Closing it at the end of the body returns the connection to the
+ * pool, closing it earlier aborts the request instead of reading the rest of a possibly huge body.
+ */
+class ResponseInputStream extends FilterInputStream {
+
+    private final HttpUriRequest request;
+    private boolean eof;
+
+    /**
+     *
+     * @param content entity content of the response
+     * @param request request to abort on an early close
+     */
+    ResponseInputStream(InputStream content, HttpUriRequest request) {
+        super(content);
+        this.request = request;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            eof = true;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+        if (read < 0) {
+            eof = true;
+        }
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!eof) {
+            request.abort();
+        }
+        super.close();
+    }
+}
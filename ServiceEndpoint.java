@@ -0,0 +1,187 @@
+package com.be2.services.client;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One base url of the services together with its connection pools and the statistics of the
+ * calls sent to it.
+ * <p>
+ * Latency and error ratio are exponentially weighted moving averages over the last calls. They
+ * give the cost of sending the next call here: the average latency, times the calls already
+ * outstanding plus one, raised by up to tenfold by the error ratio.
+ */
+public class ServiceEndpoint {
+
+    private static final double WEIGHT = 0.2;
+    private static final long MIN_LATENCY_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+
+    private final String url;
+    private final ConnectionPool defaultPool;
+    private final Map<String, ConnectionPool> resourcePools;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong latencyBits = new AtomicLong(Double.doubleToRawLongBits(0));
+    private final AtomicLong errorBits = new AtomicLong(Double.doubleToRawLongBits(0));
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean ejected = new AtomicBoolean();
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder ejections = new LongAdder();
+
+    /**
+     *
+     * @param url base url, e.g. {@code http://services-1:8080/services}
+     * @param defaultPool pool shared by the resources without a dedicated pool
+     * @param resourcePools dedicated pools by resource path
+     */
+    public ServiceEndpoint(String url, ConnectionPool defaultPool, Map<String, ConnectionPool> resourcePools) {
+        this.url = url;
+        this.defaultPool = defaultPool;
+        this.resourcePools = resourcePools;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public ConnectionPool getDefaultPool() {
+        return defaultPool;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public Map<String, ConnectionPool> getResourcePools() {
+        return resourcePools;
+    }
+
+    /**
+     *
+     * @param path
+     * @return dedicated pool of the resource, the shared pool if it has none
+     */
+    public ConnectionPool getPool(String path) {
+        ConnectionPool pool = resourcePools.get(path);
+        return pool == null ? defaultPool : pool;
+    }
+
+    /**
+     * Counts a call sent to the endpoint, to be followed by {@link #finish(long, boolean)}.
+     */
+    public void start() {
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     *
+     * @param latencyNanos
+     * @param failed
+     * @return consecutive failures including this call, 0 after a success
+     */
+    public int finish(long latencyNanos, boolean failed) {
+        outstanding.decrementAndGet();
+        calls.increment();
+        update(latencyBits, latencyNanos);
+        update(errorBits, failed ? 1 : 0);
+        if (!failed) {
+            if (consecutiveFailures.get() != 0) {
+                consecutiveFailures.set(0);
+            }
+            return 0;
+        }
+        failures.increment();
+        return consecutiveFailures.incrementAndGet();
+    }
+
+    private static void update(AtomicLong bits, double sample) {
+        while (true) {
+            long current = bits.get();
+            double average = Double.longBitsToDouble(current);
+            double next = average + WEIGHT * (sample - average);
+            if (bits.compareAndSet(current, Double.doubleToRawLongBits(next))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     *
+     * @return expected cost of sending one more call to the endpoint
+     */
+    public double getLoad() {
+        double latency = Math.max(MIN_LATENCY_NANOS, Double.longBitsToDouble(latencyBits.get()));
+        return latency * (outstanding.get() + 1) * (1 + 9 * getErrorRatio());
+    }
+
+    /**
+     *
+     * @return
+     */
+    public double getErrorRatio() {
+        return Double.longBitsToDouble(errorBits.get());
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     *
+     * @return true if the endpoint is taken out of the rotation until a probe succeeds
+     */
+    public boolean isEjected() {
+        return ejected.get();
+    }
+
+    /**
+     *
+     * @return true if the endpoint was in the rotation
+     */
+    public boolean eject() {
+        if (ejected.compareAndSet(false, true)) {
+            ejections.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Puts the endpoint back into the rotation after a successful probe. The error ratio starts
+     * over, so the endpoint is not avoided for the failures which ejected it.
+     */
+    public void reinstate() {
+        consecutiveFailures.set(0);
+        errorBits.set(Double.doubleToRawLongBits(0));
+        ejected.set(false);
+    }
+
+    @Override
+    public String toString() {
+        return url + " ejected=" + isEjected()
+                + " outstanding=" + getOutstanding()
+                + " latencyMicros=" + TimeUnit.NANOSECONDS.toMicros((long) Double.longBitsToDouble(latencyBits.get()))
+                + " errorRatio=" + String.format("%.3f", getErrorRatio())
+                + " calls=" + calls.sum()
+                + " failures=" + failures.sum()
+                + " ejections=" + ejections.sum();
+    }
+}
@@ -2,20 +2,25 @@ package com.be2.services.client;
 
 import com.be2.logging.SystemLogger;
 import com.be2.services.rs.*;
-import com.be2.utils.JSONUtils;
+import com.be2.services.trace.TraceContext;
+import com.be2.services.trace.Tracer;
+import com.be2.utils.ByteBufferPool;
+import com.be2.utils.ChannelTransfer;
+import com.fasterxml.jackson.jaxrs.cbor.JacksonCBORProvider;
 import org.apache.http.*;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.AuthCache;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.protocol.ClientContext;
-import org.apache.http.impl.auth.BasicScheme;
-import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.jboss.resteasy.client.ProxyFactory;
@@ -23,20 +28,52 @@ import org.jboss.resteasy.client.core.executors.ApacheHttpClient4Executor;
 import org.jboss.resteasy.plugins.providers.jackson.ResteasyJacksonProvider;
 import org.jboss.resteasy.spi.ResteasyProviderFactory;
 import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
 
-import javax.ws.rs.ProcessingException;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 @Component("servicesClient")
-public class ServicesClient {
+@ManagedResource(objectName = "com.be2.services:name=ServicesClient")
+public class ServicesClient implements ApplicationListener<ContextRefreshedEvent> {
 
     public static final String API_URI_AUTH = "oauth/token";
     public static final String API_URI_USER = "api/user";
@@ -55,8 +92,31 @@ public class ServicesClient {
     public static final String API_URI_DATA_IMPORT_EXPORT = "api/dataImportExport";
     public static final String API_URI_SCAMMER = "api/scammer";
 
-    /**
-     */
+    private static final Map<String, Class<?>> RESOURCES = new LinkedHashMap<>();
+    private static final Map<Class<?>, String> RESOURCE_PATHS = new HashMap<>();
+
+    static {
+        RESOURCES.put(API_URI_USER, UserResource.class);
+        RESOURCES.put(API_URI_STATIC, StaticResource.class);
+        RESOURCES.put(API_URI_EMAIL, EmailResource.class);
+        RESOURCES.put(API_URI_MESSAGE, MessageResource.class);
+        RESOURCES.put(API_URI_MATCHING, MatchingResource.class);
+        RESOURCES.put(API_URI_PHOTO, PhotoResource.class);
+        RESOURCES.put(API_URI_PAYMENT, PaymentResource.class);
+        RESOURCES.put(API_URI_ENCRYPTION, EncryptionResource.class);
+        RESOURCES.put(API_URI_TASK, TaskResource.class);
+        RESOURCES.put(API_URI_EMAIL_TASK_SETTING, EmailTaskSettingResource.class);
+        RESOURCES.put(API_URI_REPORT, ReportResource.class);
+        RESOURCES.put(API_URI_PRODUCT, ProductResource.class);
+        RESOURCES.put(API_URI_SOCIAL, SocialResource.class);
+        RESOURCES.put(API_URI_DATA_IMPORT_EXPORT, DataImportExportResource.class);
+        RESOURCES.put(API_URI_SCAMMER, ScammerResource.class);
+        for (Map.Entry<String, Class<?>> resource : RESOURCES.entrySet()) {
+            RESOURCE_PATHS.put(resource.getValue(), resource.getKey());
+        }
+    }
+
+    /** base url of the services, several comma separated urls to balance the calls between them */
     @Value("${services.url:http://localhost:8080/services}")
     private String url;
 
@@ -72,136 +132,293 @@ public class ServicesClient {
     @Value("${services.http.maxConnectionCount:100}")
     public int maxConnectionCount;
 
-    private String token;
+    /** per-route limit of the shared pool, the total limit if not positive */
+    @Value("${services.http.maxPerRoute:0}")
+    private int maxPerRoute;
+
+    /** resources with a dedicated pool and its size, e.g. {@code api/payment=20,api/matching=40} */
+    @Value("${services.http.resourcePools:}")
+    private String[] resourcePoolLimits = new String[0];
+
+    @Value("${services.http.connectTimeoutMillis:5000}")
+    private int connectTimeoutMillis = 5000;
+
+    @Value("${services.http.socketTimeoutMillis:30000}")
+    private int socketTimeoutMillis = 30000;
+
+    /** how long a request waits for a free pooled connection */
+    @Value("${services.http.connectionRequestTimeoutMillis:5000}")
+    private long connectionRequestTimeoutMillis = 5000;
+
+    /** keep-alive used when the server sends none, and upper bound of the one it sends */
+    @Value("${services.http.keepAliveMillis:30000}")
+    private long keepAliveMillis = 30000;
+
+    /** checks a pooled connection for a closed socket before reusing it */
+    @Value("${services.http.staleConnectionCheck:true}")
+    private boolean staleConnectionCheck = true;
+
+    @Value("${services.http.idleEvictMillis:30000}")
+    private long idleEvictMillis = 30000;
+
+    @Value("${services.http.reaperIntervalMillis:5000}")
+    private long reaperIntervalMillis = 5000;
+
+    @Value("${services.oauth.refreshRatio:0.8}")
+    private double tokenRefreshRatio = 0.8;
+
+    /** consecutive failed calls taking an endpoint out of the rotation, 0 to never eject */
+    @Value("${services.client.endpoints.ejectFailures:5}")
+    private int endpointEjectFailures = 5;
+
+    /** how often ejected endpoints are probed */
+    @Value("${services.client.endpoints.probeIntervalMillis:5000}")
+    private long endpointProbeIntervalMillis = 5000;
+
+    /** path below the base url requested by the probe, any answer but a server error reinstates the endpoint */
+    @Value("${services.client.endpoints.probePath:}")
+    private String endpointProbePath = "";
+
+    @Value("${services.client.endpoints.probeTimeoutMillis:2000}")
+    private int endpointProbeTimeoutMillis = 2000;
+
+    private EndpointBalancer balancer;
+    private ScheduledExecutorService probeScheduler;
+    private ScheduledExecutorService scheduler;
+    private AccessTokenManager tokenManager;
+    private UnauthorizedRetryInterceptor unauthorizedRetryInterceptor;
 
-    private ApacheHttpClient4Executor executor;
     private ResteasyProviderFactory factory;
 
-    private UserResource userResource;
-    private StaticResource staticResource;
-    private EmailResource emailResource;
-    private MessageResource messageResource;
-    private MatchingResource matchingResource;
-    private PhotoResource photoResource;
-    private PaymentResource paymentResource;
-    private EncryptionResource encryptionResource;
-    private TaskResource taskResource;
-    private EmailTaskSettingResource emailTaskSettingResource;
-    private ReportResource reportResource;
-    private ProductResource productResource;
-    private SocialResource socialResource;
-    private DataImportExportResource dataImportExportResource;
-    private ScammerResource scammerResource;
+    @Value("${services.client.preloadedResources:}")
+    private String[] preloadedResources = new String[0];
+
+    private final ConcurrentMap<Class<?>, Object> resources = new ConcurrentHashMap<>();
+
+    /** threads of {@link #callInBackground}, the connection count if not positive */
+    @Value("${services.client.callPool.threads:0}")
+    private int callPoolThreads;
+
+    /** calls waiting for a thread of {@link #callInBackground}, further calls are rejected */
+    @Value("${services.client.callPool.queueSize:1000}")
+    private int callPoolQueueSize = 1000;
+
+    private volatile ExecutorService callPool;
+
+    @Value("${services.client.batch.windowMicros:2000}")
+    private long batchWindowMicros = 2000;
+
+    @Value("${services.client.batch.maxSize:50}")
+    private int batchMaxSize = 50;
+
+    /** threads making the bulk calls of the batchers, the connection count if not positive */
+    @Value("${services.client.batch.threads:0}")
+    private int batchThreads;
+
+    private volatile ExecutorService batchExecutor;
+
+    /** cached resource methods and their time to live, e.g. {@code StaticResource.*=3600000,ProductResource.getProducts=60000} */
+    @Value("${services.client.cache.methods:}")
+    private String[] cachedMethods = new String[0];
+
+    @Value("${services.client.cache.maxEntries:10000}")
+    private int cacheMaxEntries = 10000;
+
+    /** how long an expired response is still served while it is reloaded in the background */
+    @Value("${services.client.cache.staleMillis:60000}")
+    private long cacheStaleMillis = 60000;
+
+    /** result codes of successful responses, responses with other codes are not cached */
+    @Value("${services.client.cache.successCodes:OK}")
+    private String[] cacheSuccessCodes = {"OK"};
+
+    private ResponseCache responseCache;
+    private ResponseCacheInterceptor responseCacheInterceptor;
+
+    /** concurrent call limit of every resource, 0 for none */
+    @Value("${services.client.bulkhead.maxConcurrent:0}")
+    private int bulkheadMaxConcurrent;
+
+    /** concurrent call limits of single resources, e.g. {@code api/payment=20,api/matching=40} */
+    @Value("${services.client.bulkhead.resources:}")
+    private String[] bulkheadResourceLimits = new String[0];
+
+    @Value("${services.client.bulkhead.waitMillis:0}")
+    private long bulkheadWaitMillis;
+
+    /** consecutive failures opening the circuit breaker of a resource, 0 to disable, e.g. 20 */
+    @Value("${services.client.breaker.failureThreshold:0}")
+    private int breakerFailureThreshold = 0;
+
+    @Value("${services.client.breaker.openMillis:10000}")
+    private long breakerOpenMillis = 10000;
+
+    private final Map<String, ResourceGuardInterceptor> resourceGuards = new ConcurrentHashMap<>();
+
+    @Autowired(required = false)
+    private Tracer tracer;
+
+    @Value("${services.client.hedge.resources:}")
+    private String[] hedgedResources = new String[0];
+    @Value("${services.client.hedge.percentile:95}")
+    private double hedgePercentile = 95;
+    @Value("${services.client.hedge.budgetPercent:5}")
+    private int hedgeBudgetPercent = 5;
+    @Value("${services.client.hedge.minDelayMillis:5}")
+    private long hedgeMinDelayMillis = 5;
+    @Value("${services.client.hedge.minSamples:100}")
+    private long hedgeMinSamples = 100;
+    @Value("${services.client.hedge.windowMillis:30000}")
+    private long hedgeWindowMillis = 30000;
+
+    /** threads running hedged attempts, the connection count if not positive */
+    @Value("${services.client.hedge.threads:0}")
+    private int hedgeThreads;
+
+    private final Map<String, HedgingInterceptor> hedgingInterceptors = new ConcurrentHashMap<>();
+    private ExecutorService hedgeExecutor;
+
+    @Value("${services.client.wireFormat:smile}")
+    private String wireFormat = "smile";
+    @Value("${services.client.wireFormat.resources:}")
+    private String[] wireFormatResources = new String[0];
+    @Value("${services.client.compression.responses:true}")
+    private boolean compressResponses = true;
+    @Value("${services.client.compression.requestThresholdBytes:0}")
+    private long compressRequestThreshold = 0;
+
+    private WireFormatInterceptor wireFormatInterceptor;
+
+    @Value("${services.client.binary.bufferSize:65536}")
+    private int binaryBufferSize = 65536;
+    @Value("${services.client.binary.pooledBuffers:64}")
+    private int binaryPooledBuffers = 64;
+    @Value("${services.client.binary.mmapThresholdBytes:4194304}")
+    private long binaryMmapThreshold = 4194304;
+
+    private ByteBufferPool binaryBuffers;
+
+    /** generated property accessors in the Jackson 2 CBOR mapper, JSON and Smile use the services' Jackson 1 mapper */
+    @Value("${services.client.jackson.afterburner:true}")
+    private boolean jacksonAfterburner = true;
+
+    private JacksonMappers mappers;
 
-    // not really a good hack, should be replaced with reentrant lock
-    private boolean initialized;
+    @Value("${services.client.eagerInit:false}")
+    private boolean eagerInit;
+
+    private final ReentrantLock initLock = new ReentrantLock();
+    private volatile boolean initialized;
+
+    /**
+     * Initializes the client and the preloaded proxies when the application context starts,
+     * so the first request does not pay for it. Enabled by {@code services.client.eagerInit}.
+     *
+     * @param event
+     */
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        if (eagerInit) {
+            try {
+                ensureInitialized();
+            } catch (RuntimeException e) {
+                SystemLogger.error(e);
+            }
+        }
+    }
+
+    /**
+     * Initializes the connection manager and the access token once. Concurrent callers wait for
+     * the initialization in progress instead of running their own, and see the fields fully built
+     * through the volatile flag. A failed initialization is retried by the next caller.
+     */
+    private void ensureInitialized() {
+        if (initialized) {
+            return;
+        }
+        initLock.lock();
+        try {
+            if (!initialized) {
+                initProxies();
+            }
+        } finally {
+            initLock.unlock();
+        }
+    }
 
     /**
      *
      * @return productResource
      */
     public ProductResource getProductResource() {
-        if(!initialized) {
-            initProxies();
-        }
-        return productResource;
+        return getResource(API_URI_PRODUCT, ProductResource.class);
     }
 
     /**
      * @return
      */
     public PhotoResource getPhotoResource() {
-        if(!initialized) {
-            initProxies();
-        }
-        return this.photoResource;
+        return getResource(API_URI_PHOTO, PhotoResource.class);
     }
 
     /**
      * @return
      */
     public UserResource getUserResource() {
-        if(!initialized) {
-            initProxies();
-        }
-        return this.userResource;
+        return getResource(API_URI_USER, UserResource.class);
     }
 
     /**
      * @return
      */
     public MessageResource getMessageResource() {
-        if(!initialized) {
-            initProxies();
-        }
-        return this.messageResource;
+        return getResource(API_URI_MESSAGE, MessageResource.class);
     }
 
     /**
      * @return
      */
     public StaticResource getStaticResource() {
-        if(!initialized) {
-            initProxies();
-        }
-        return this.staticResource;
+        return getResource(API_URI_STATIC, StaticResource.class);
     }
 
     /**
      * @return
      */
     public EmailResource getEmailResource() {
-        if(!initialized) {
-            initProxies();
-        }
-        return this.emailResource;
+        return getResource(API_URI_EMAIL, EmailResource.class);
     }
 
     /**
      * @return
      */
     public MatchingResource getMatchingResource() {
-        if(!initialized) {
-            initProxies();
-        }
-        return this.matchingResource;
+        return getResource(API_URI_MATCHING, MatchingResource.class);
     }
 
     /**
      * @return
      */
     public PaymentResource getPaymentResource() {
-        if(!initialized) {
-            initProxies();
-        }
-        return this.paymentResource;
+        return getResource(API_URI_PAYMENT, PaymentResource.class);
     }
 
     /**
      * @return
      */
     public EncryptionResource getEncryptionResource() {
-        if(!initialized) {
-            initProxies();
-        }
-        return this.encryptionResource;
+        return getResource(API_URI_ENCRYPTION, EncryptionResource.class);
     }
 
     /**
      * @return
      */
     public TaskResource getTaskResource() {
-        if(!initialized) {
-            initProxies();
-        }
-        return taskResource;
+        return getResource(API_URI_TASK, TaskResource.class);
     }
 
     public EmailTaskSettingResource getEmailTaskSettingResource() {
-        if(!initialized) {
-            initProxies();
-        }
-        return emailTaskSettingResource;
+        return getResource(API_URI_EMAIL_TASK_SETTING, EmailTaskSettingResource.class);
     }
 
     /**
@@ -210,20 +427,14 @@ public class ServicesClient {
      * @return Value of reportResource.
      */
     public ReportResource getReportResource() {
-        if(!initialized) {
-            initProxies();
-        }
-        return reportResource;
+        return getResource(API_URI_REPORT, ReportResource.class);
     }
 
     /**
      * @return
      */
     public SocialResource getSocialResource() {
-        if(!initialized) {
-            initProxies();
-        }
-        return this.socialResource;
+        return getResource(API_URI_SOCIAL, SocialResource.class);
     }
 
     /**
@@ -231,87 +442,726 @@ public class ServicesClient {
      * @return
      */
     public DataImportExportResource getDataImportExportResource() {
-        if(!initialized) {
-            initProxies();
-        }
-        return dataImportExportResource;
+        return getResource(API_URI_DATA_IMPORT_EXPORT, DataImportExportResource.class);
     }
 
     /**
      * @return
      */
     public ScammerResource getScammerResource() {
-        if(!initialized) {
-            initProxies();
+        return getResource(API_URI_SCAMMER, ScammerResource.class);
+    }
+
+    /**
+     * Opens a response of {@link DataImportExportResource} as a stream, for exports too large to
+     * be read through the resource proxy, which buffers the whole body.
+     *
+     * @param subPath path below {@value #API_URI_DATA_IMPORT_EXPORT}
+     * @param query query parameters, may be null
+     * @return response body, to be closed by the caller
+     * @throws IOException if the request fails or the response is not successful
+     */
+    public InputStream openDataExportStream(String subPath, Map<String, String> query) throws IOException {
+        return openStream(API_URI_DATA_IMPORT_EXPORT, subPath, query, "application/json");
+    }
+
+    /**
+     * Reads the records of a {@link DataImportExportResource} export one at a time.
+     *
+     * @param subPath path below {@value #API_URI_DATA_IMPORT_EXPORT}
+     * @param query query parameters, may be null
+     * @param type record type
+     * @return records, to be closed by the caller
+     * @throws IOException if the request fails or the response is not successful
+     */
+    public <T> JsonRecordIterator<T> streamDataExport(String subPath, Map<String, String> query, Class<T> type) throws IOException {
+        return new JsonRecordIterator<>(openDataExportStream(subPath, query), mappers.readerFor(type));
+    }
+
+    /**
+     * Opens a {@link PhotoResource} response, e.g. the image bytes, as a stream.
+     *
+     * @param subPath path below {@value #API_URI_PHOTO}
+     * @return response body, to be closed by the caller
+     * @throws IOException if the request fails or the response is not successful
+     */
+    public InputStream openPhotoStream(String subPath) throws IOException {
+        return openStream(API_URI_PHOTO, subPath, null, "*/*");
+    }
+
+    /**
+     * Downloads a {@link PhotoResource} response into a file through a pooled direct buffer.
+     *
+     * @param subPath path below {@value #API_URI_PHOTO}
+     * @param target file, created or replaced
+     * @return number of bytes written
+     * @throws IOException if the request fails or the response is not successful
+     */
+    public long downloadPhoto(String subPath, Path target) throws IOException {
+        try (InputStream content = openPhotoStream(subPath);
+             FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            return ChannelTransfer.transfer(Channels.newChannel(content), file, binaryBuffers);
+        }
+    }
+
+    /**
+     * Uploads a file to {@link PhotoResource} from a file channel, large files from a memory
+     * mapping ({@code services.client.binary.mmapThresholdBytes}).
+     *
+     * @param subPath path below {@value #API_URI_PHOTO}
+     * @param file
+     * @param contentType e.g. {@code image/jpeg}
+     * @param responseType type of the JSON response, null to ignore the response body
+     * @return response, null if ignored or empty
+     * @throws IOException if the request fails or the response is not successful
+     */
+    public <T> T uploadPhoto(String subPath, Path file, String contentType, Class<T> responseType) throws IOException {
+        ensureInitialized();
+        final FileChannelEntity entity = new FileChannelEntity(file, contentType, binaryBuffers, binaryMmapThreshold);
+        return readResponse(execute(API_URI_PHOTO, subPath, null, new Function<URI, HttpUriRequest>() {
+            @Override
+            public HttpUriRequest apply(URI uri) {
+                HttpPost request = new HttpPost(uri);
+                request.setEntity(entity);
+                return request;
+            }
+        }, true), responseType);
+    }
+
+    /**
+     * Uploads a stream to {@link PhotoResource}. The stream can only be sent once, so a 401 is not retried.
+     *
+     * @param subPath path below {@value #API_URI_PHOTO}
+     * @param content
+     * @param length content length, -1 to send chunked
+     * @param contentType e.g. {@code image/jpeg}
+     * @param responseType type of the JSON response, null to ignore the response body
+     * @return response, null if ignored or empty
+     * @throws IOException if the request fails or the response is not successful
+     */
+    public <T> T uploadPhoto(String subPath, InputStream content, long length, String contentType, Class<T> responseType) throws IOException {
+        ensureInitialized();
+        final InputStreamEntity entity = new InputStreamEntity(content, length);
+        entity.setContentType(contentType);
+        entity.setChunked(length < 0);
+        return readResponse(execute(API_URI_PHOTO, subPath, null, new Function<URI, HttpUriRequest>() {
+            @Override
+            public HttpUriRequest apply(URI uri) {
+                HttpPost request = new HttpPost(uri);
+                request.setEntity(entity);
+                return request;
+            }
+        }, false), responseType);
+    }
+
+    private <T> T readResponse(HttpResponse response, Class<T> responseType) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (responseType == null || entity == null) {
+            EntityUtils.consume(entity);
+            return null;
+        }
+        try (InputStream content = entity.getContent()) {
+            return mappers.readerFor(responseType).readValue(content);
+        }
+    }
+
+    /**
+     * Sends a GET request on the pool of the resource and returns the body unbuffered.
+     *
+     * @param path resource path
+     * @param subPath
+     * @param query may be null
+     * @param accept
+     * @return response body
+     * @throws IOException
+     */
+    private InputStream openStream(String path, String subPath, Map<String, String> query, final String accept) throws IOException {
+        ensureInitialized();
+        final HttpGet[] sent = new HttpGet[1];
+        HttpResponse response = execute(path, subPath, query, new Function<URI, HttpUriRequest>() {
+            @Override
+            public HttpUriRequest apply(URI uri) {
+                sent[0] = new HttpGet(uri);
+                sent[0].setHeader("Accept", accept);
+                return sent[0];
+            }
+        }, true);
+        return new ResponseInputStream(response.getEntity().getContent(), sent[0]);
+    }
+
+    private URI buildUri(ServiceEndpoint endpoint, String path, String subPath, Map<String, String> query) throws IOException {
+        try {
+            URIBuilder builder = new URIBuilder(endpoint.getUrl() + "/" + path + "/" + subPath);
+            if (query != null) {
+                for (Map.Entry<String, String> parameter : query.entrySet()) {
+                    builder.addParameter(parameter.getKey(), parameter.getValue());
+                }
+            }
+            return builder.build();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Sends a request on the pool of the resource, outside the resource proxies. The endpoint is
+     * chosen by the balancer, its statistics count the time until the response headers. The
+     * authorization header is added by the pool, a 401 refreshes the token and is retried once if allowed.
+     *
+     * @param path resource path
+     * @param subPath
+     * @param query may be null
+     * @param requests creates the request for the uri, called again for the retry
+     * @param retryUnauthorized false if the request entity can only be sent once
+     * @return successful response with an entity
+     * @throws IOException if the request fails or the response is not successful
+     */
+    private HttpResponse execute(String path, String subPath, Map<String, String> query,
+                                 Function<URI, HttpUriRequest> requests, boolean retryUnauthorized) throws IOException {
+        boolean retried = !retryUnauthorized;
+        while (true) {
+            String token = tokenManager == null ? null : tokenManager.getToken();
+            HttpUriRequest request;
+            HttpResponse response = null;
+            int index = balancer.choose();
+            ServiceEndpoint endpoint = balancer.getEndpoints()[index];
+            endpoint.start();
+            long start = System.nanoTime();
+            try {
+                request = requests.apply(buildUri(endpoint, path, subPath, query));
+                response = endpoint.getPool(path).getHttpClient().execute(request);
+            } finally {
+                balancer.finish(index, System.nanoTime() - start,
+                        response == null || response.getStatusLine().getStatusCode() >= 500);
+            }
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            if (status == 401 && !retried && tokenManager != null) {
+                EntityUtils.consume(entity);
+                tokenManager.refreshAfterUnauthorized(token);
+                retried = true;
+                continue;
+            }
+            if (status < 200 || status >= 300 || entity == null) {
+                EntityUtils.consume(entity);
+                throw new IOException(request.getMethod() + " " + request.getURI() + " failed: " + response.getStatusLine());
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Runs a call on a resource proxy on a bounded thread pool, so the caller can go on or start
+     * several calls at once. The call goes through the same proxy chain as a synchronous one, so
+     * authorization and the resource call aspect still apply.
+     * <p>
+     * This is a convenience over the blocking client, not a non-blocking one: each call holds a
+     * pool thread for its whole duration. At most {@code services.client.callPool.threads} calls
+     * run at once, {@code services.client.callPool.queueSize} more wait, and further calls are
+     * rejected.
+     *
+     * @param clazz resource interface, e.g. {@code MatchingResource.class}
+     * @param call call to make on the resource proxy
+     * @return future completed with the result of the call
+     * @throws java.util.concurrent.RejectedExecutionException if the pool and its queue are full
+     */
+    public <R, T> CompletableFuture<T> callInBackground(final Class<R> clazz, final Function<? super R, ? extends T> call) {
+        String path = RESOURCE_PATHS.get(clazz);
+        if (path == null) {
+            throw new IllegalArgumentException("Unknown services resource: " + clazz.getName());
+        }
+        final R resource = getResource(path, clazz);
+        return CompletableFuture.supplyAsync(new Supplier<T>() {
+            @Override
+            public T get() {
+                return call.apply(resource);
+            }
+        }, getCallPool());
+    }
+
+    /**
+     * Creates a batcher that collects concurrent single-entity lookups, e.g. of users, into bulk
+     * calls. The bulk call itself is given by the caller, typically a bulk method of
+     * {@link UserResource}:
+     * <pre>
+     * RequestBatcher&lt;Long, UserDTO&gt; users = servicesClient.newRequestBatcher(ids -&gt; toMap(userResource.getUsers(ids)));
+     * UserDTO user = users.get(userId);
+     * </pre>
+     * Batches close after {@code services.client.batch.windowMicros} or
+     * {@code services.client.batch.maxSize} keys.
+     *
+     * @param loader makes the bulk call
+     * @return batcher, to be kept and shared by the callers
+     */
+    public <K, V> RequestBatcher<K, V> newRequestBatcher(RequestBatcher.BulkLoader<K, V> loader) {
+        ensureInitialized();
+        return new RequestBatcher<>(loader, batchWindowMicros, batchMaxSize, scheduler, getBatchExecutor());
+    }
+
+    /**
+     * Executor of the bulk calls, separate from the call pool: {@link #callInBackground} tasks
+     * waiting in {@link RequestBatcher#get} could otherwise hold every thread while the bulk call
+     * they wait for is queued behind them. Bulk calls queue without bound, their number is limited
+     * by the callers waiting for them.
+     *
+     * @return
+     */
+    private ExecutorService getBatchExecutor() {
+        ExecutorService executor = batchExecutor;
+        if (executor != null) {
+            return executor;
+        }
+        initLock.lock();
+        try {
+            if (batchExecutor == null) {
+                int threads = batchThreads > 0 ? batchThreads : maxConnectionCount;
+                ThreadPoolExecutor created = new ThreadPoolExecutor(
+                        threads,
+                        threads,
+                        60,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            private final AtomicInteger sequence = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(Runnable runnable) {
+                                Thread thread = new Thread(runnable, "services-batch-" + sequence.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        }
+                );
+                created.allowCoreThreadTimeOut(true);
+                batchExecutor = created;
+            }
+            return batchExecutor;
+        } finally {
+            initLock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @return pool of {@link #callInBackground}
+     */
+    private ExecutorService getCallPool() {
+        ExecutorService executor = callPool;
+        if (executor != null) {
+            return executor;
+        }
+        initLock.lock();
+        try {
+            if (callPool == null) {
+                int threads = callPoolThreads > 0 ? callPoolThreads : maxConnectionCount;
+                ThreadPoolExecutor created = new ThreadPoolExecutor(
+                        threads,
+                        threads,
+                        60,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(Math.max(1, callPoolQueueSize)),
+                        new ThreadFactory() {
+                            private final AtomicInteger sequence = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(Runnable runnable) {
+                                Thread thread = new Thread(runnable, "services-call-" + sequence.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        }
+                );
+                created.allowCoreThreadTimeOut(true);
+                callPool = created;
+            }
+            return callPool;
+        } finally {
+            initLock.unlock();
         }
-        return this.scammerResource;
     }
 
     private void initConnectionManager(){
+        mappers = new JacksonMappers(jacksonAfterburner);
+        binaryBuffers = new ByteBufferPool(binaryBufferSize, binaryPooledBuffers);
+        List<String> binaryResources = getBinaryResources();
+        if (!binaryResources.isEmpty() || compressRequestThreshold > 0) {
+            wireFormatInterceptor = new WireFormatInterceptor(getWireFormatMediaType(), binaryResources, compressRequestThreshold);
+        }
+        List<ServiceEndpoint> endpoints = new ArrayList<>();
+        for (String endpointUrl : url.split(",")) {
+            if (!endpointUrl.trim().isEmpty()) {
+                endpoints.add(createEndpoint(endpointUrl.trim()));
+            }
+        }
+        balancer = new EndpointBalancer(
+                endpoints.toArray(new ServiceEndpoint[endpoints.size()]),
+                endpointEjectFailures,
+                endpointProbePath.trim(),
+                endpointProbeTimeoutMillis
+        );
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "services-client-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (idleEvictMillis > 0 && reaperIntervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (ConnectionPool pool : getPools()) {
+                        pool.evictIdle(idleEvictMillis);
+                    }
+                }
+            }, reaperIntervalMillis, reaperIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (endpoints.size() > 1 && endpointEjectFailures > 0) {
+            // probes block up to their timeouts, they must not delay the batch windows of the scheduler
+            probeScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "services-endpoint-probe");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            probeScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    balancer.probe();
+                }
+            }, endpointProbeIntervalMillis, endpointProbeIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Registers the message body providers, once the rest of the initialization succeeded: the
+     * provider factory is shared by the whole application.
+     */
+    private void initProviders() {
+        factory = ResteasyProviderFactory.getInstance();
+        ResteasyJacksonProvider jsonProvider = new ResteasyJacksonProvider();
+        jsonProvider.setMapper(mappers.getJsonMapper());
+        factory.register(jsonProvider);
+        // only read the binary format, request bodies are still written as JSON
+        if (!getBinaryResources().isEmpty()) {
+            if (WireFormatInterceptor.CBOR.equals(getWireFormatMediaType())) {
+                factory.register(new JacksonCBORProvider(mappers.getCborMapper()));
+            } else {
+                factory.register(new SmileJsonProvider(mappers.getSmileMapper()));
+            }
+        }
+    }
+
+    /**
+     *
+     * @return resources answered in the binary wire format
+     */
+    private List<String> getBinaryResources() {
+        List<String> binaryResources = new ArrayList<>();
+        for (String resource : wireFormatResources) {
+            if (!resource.trim().isEmpty()) {
+                binaryResources.add(resource.trim());
+            }
+        }
+        return binaryResources;
+    }
+
+    /**
+     *
+     * @param endpointUrl
+     * @return endpoint with its own shared pool and resource pools
+     */
+    private ServiceEndpoint createEndpoint(String endpointUrl) {
+        // pool names carry the endpoint only when there are several
+        String prefix = url.indexOf(',') < 0 ? "" : endpointUrl + " ";
+        ConnectionPool defaultPool = createPool(prefix + "default", maxConnectionCount, maxPerRoute > 0 ? maxPerRoute : maxConnectionCount);
+        Map<String, ConnectionPool> resourcePools = new HashMap<>();
+        for (String limit : resourcePoolLimits) {
+            String[] pathAndSize = limit.split("=");
+            if (pathAndSize.length != 2) {
+                SystemLogger.error(new IllegalArgumentException("Invalid resource pool limit: " + limit));
+                continue;
+            }
+            String path = pathAndSize[0].trim();
+            int size = Integer.parseInt(pathAndSize[1].trim());
+            resourcePools.put(path, createPool(prefix + path, size, size));
+        }
+        return new ServiceEndpoint(endpointUrl, defaultPool, resourcePools);
+    }
+
+    /**
+     *
+     * @param name
+     * @param maxTotal
+     * @param maxPerRoute
+     * @return pool with the configured timeouts, keep-alive and authorization header
+     */
+    private ConnectionPool createPool(String name, int maxTotal, int maxPerRoute) {
         PoolingClientConnectionManager cm = new PoolingClientConnectionManager();
 
-        cm.setDefaultMaxPerRoute(maxConnectionCount);
-        cm.setMaxTotal(maxConnectionCount);
+        cm.setDefaultMaxPerRoute(maxPerRoute);
+        cm.setMaxTotal(maxTotal);
 
         DefaultHttpClient httpClient = new DefaultHttpClient(cm);
 
+        HttpParams params = httpClient.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeoutMillis);
+        HttpConnectionParams.setSoTimeout(params, socketTimeoutMillis);
+        HttpConnectionParams.setStaleCheckingEnabled(params, staleConnectionCheck);
+        params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, connectionRequestTimeoutMillis);
+
+        httpClient.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 ? Math.min(duration, keepAliveMillis) : keepAliveMillis;
+            }
+        });
+
         httpClient.addRequestInterceptor(new HttpRequestInterceptor(){
             @Override
             public void process(HttpRequest httpRequest, HttpContext httpContext) throws HttpException, IOException {
-                httpRequest.setHeader("Authorization", "Bearer " + token);
+                // requests that bring their own credentials, like the token request, are left alone
+                String token = tokenManager == null ? null : tokenManager.getToken();
+                if (token != null && !httpRequest.containsHeader("Authorization")) {
+                    httpRequest.setHeader("Authorization", "Bearer " + token);
+                }
+                TraceContext span = tracer == null ? null : tracer.current();
+                if (span != null) {
+                    httpRequest.setHeader(TraceContext.HEADER, span.toHeader());
+                }
             }
         });
-        executor = new ApacheHttpClient4Executor(httpClient);
+        if (wireFormatInterceptor != null) {
+            httpClient.addRequestInterceptor(wireFormatInterceptor, 0);
+        }
+        if (compressResponses) {
+            httpClient.addRequestInterceptor(new RequestAcceptEncoding());
+            httpClient.addResponseInterceptor(new ResponseContentEncoding());
+        }
+        return new ConnectionPool(name, cm, httpClient);
+    }
 
-        factory = ResteasyProviderFactory.getInstance();
-        factory.register(new ResteasyJacksonProvider());
+    private String getWireFormatMediaType() {
+        return "cbor".equalsIgnoreCase(wireFormat.trim()) ? WireFormatInterceptor.CBOR : WireFormatInterceptor.SMILE;
     }
 
     /**
-     * Creates JAXR proxies for Auth REST resources.
+     *
+     * @return binary format negotiated for {@code services.client.wireFormat.resources}
      */
-    protected void initProxies() {
-        String formattedUrl = this.url.trim();
-        initAccessToken();
-        initConnectionManager();
-
-        userResource = initResourceProxy(formattedUrl, API_URI_USER, UserResource.class, executor, factory);
-        staticResource = initResourceProxy(formattedUrl, API_URI_STATIC, StaticResource.class, executor, factory);
-        emailResource = initResourceProxy(formattedUrl, API_URI_EMAIL, EmailResource.class, executor, factory);
-        messageResource = initResourceProxy(formattedUrl, API_URI_MESSAGE, MessageResource.class, executor, factory);
-        matchingResource = initResourceProxy(formattedUrl, API_URI_MATCHING, MatchingResource.class, executor, factory);
-        photoResource = initResourceProxy(formattedUrl, API_URI_PHOTO, PhotoResource.class, executor, factory);
-        paymentResource = initResourceProxy(formattedUrl, API_URI_PAYMENT, PaymentResource.class, executor, factory);
-        encryptionResource = initResourceProxy(formattedUrl, API_URI_ENCRYPTION, EncryptionResource.class, executor, factory);
-        taskResource = initResourceProxy(formattedUrl, API_URI_TASK, TaskResource.class, executor, factory);
-        emailTaskSettingResource = initResourceProxy(formattedUrl, API_URI_EMAIL_TASK_SETTING, EmailTaskSettingResource.class, executor, factory);
-        reportResource = initResourceProxy(formattedUrl, API_URI_REPORT, ReportResource.class, executor, factory);
-        productResource = initResourceProxy(formattedUrl, API_URI_PRODUCT, ProductResource.class, executor, factory);
-        socialResource = initResourceProxy(formattedUrl, API_URI_SOCIAL, SocialResource.class, executor, factory);
-        dataImportExportResource = initResourceProxy(formattedUrl, API_URI_DATA_IMPORT_EXPORT, DataImportExportResource.class, executor, factory);
-        scammerResource = initResourceProxy(formattedUrl, API_URI_SCAMMER, ScammerResource.class, executor, factory);
+    @ManagedAttribute
+    public String getWireFormat() {
+        return getWireFormatMediaType() + " for " + Arrays.toString(wireFormatResources);
+    }
+
+    private List<ConnectionPool> getPools() {
+        List<ConnectionPool> pools = new ArrayList<>();
+        if (balancer != null) {
+            for (ServiceEndpoint endpoint : balancer.getEndpoints()) {
+                pools.add(endpoint.getDefaultPool());
+                pools.addAll(endpoint.getResourcePools().values());
+            }
+        }
+        return pools;
+    }
+
+    /**
+     *
+     * @return calls, latency, errors and ejection state of every services endpoint
+     */
+    @ManagedAttribute
+    public String[] getEndpoints() {
+        List<String> endpoints = new ArrayList<>();
+        if (balancer != null) {
+            for (ServiceEndpoint endpoint : balancer.getEndpoints()) {
+                endpoints.add(endpoint.toString());
+            }
+        }
+        return endpoints.toArray(new String[endpoints.size()]);
+    }
+
+    /**
+     *
+     * @return number of endpoints taken out of the rotation
+     */
+    @ManagedAttribute
+    public int getEjectedEndpoints() {
+        return balancer == null ? 0 : balancer.getEndpoints().length - balancer.getAvailable();
+    }
 
+    /**
+     *
+     * @return number of direct transfer buffers allocated, a count far above
+     * {@code services.client.binary.pooledBuffers} means the pool is too small
+     */
+    @ManagedAttribute
+    public long getBinaryBuffersCreated() {
+        return binaryBuffers == null ? 0 : binaryBuffers.getCreated();
+    }
+
+    /**
+     *
+     * @return
+     */
+    @ManagedAttribute
+    public long getPoolLeased() {
+        long leased = 0;
+        for (ConnectionPool pool : getPools()) {
+            leased += pool.getStats().getLeased();
+        }
+        return leased;
+    }
+
+    /**
+     *
+     * @return
+     */
+    @ManagedAttribute
+    public long getPoolAvailable() {
+        long available = 0;
+        for (ConnectionPool pool : getPools()) {
+            available += pool.getStats().getAvailable();
+        }
+        return available;
+    }
+
+    /**
+     *
+     * @return
+     */
+    @ManagedAttribute
+    public long getPoolPending() {
+        long pending = 0;
+        for (ConnectionPool pool : getPools()) {
+            pending += pool.getStats().getPending();
+        }
+        return pending;
+    }
+
+    /**
+     *
+     * @return statistics of every connection pool
+     */
+    @ManagedAttribute
+    public String[] getPoolStats() {
+        List<String> stats = new ArrayList<>();
+        for (ConnectionPool pool : getPools()) {
+            stats.add(pool.toString());
+        }
+        return stats.toArray(new String[stats.size()]);
+    }
+
+    /**
+     * Creates the connection manager, fetches the access token and creates the JAXR proxies listed in
+     * {@code services.client.preloadedResources}. Other proxies are created on first access.
+     * Callers must hold {@code initLock}.
+     */
+    protected void initProxies() {
+        try {
+            initConnectionManager();
+            initAccessToken();
+            initResponseCache();
+        } catch (RuntimeException | Error e) {
+            // the next call retries the initialization, it must not leak the threads and pools of this one
+            shutdownConnections();
+            throw e;
+        }
+        initProviders();
         initialized = true;
+
+        for (String preloaded : preloadedResources) {
+            String path = preloaded.trim();
+            if ("*".equals(path)) {
+                for (Map.Entry<String, Class<?>> resource : RESOURCES.entrySet()) {
+                    getResource(resource.getKey(), resource.getValue());
+                }
+                continue;
+            }
+            Class<?> clazz = RESOURCES.get(path);
+            if (clazz == null) {
+                SystemLogger.error(new IllegalArgumentException("Unknown services resource: " + path));
+            } else {
+                getResource(path, clazz);
+            }
+        }
     }
 
     /**
      *
+     * @param path
+     * @param clazz
+     * @return proxy of the resource, created on first access
+     */
+    private <T> T getResource(String path, Class<T> clazz) {
+        Object resource = resources.get(clazz);
+        if (resource == null) {
+            ensureInitialized();
+            initLock.lock();
+            try {
+                resource = resources.get(clazz);
+                if (resource == null) {
+                    resource = initResourceProxy(path, clazz);
+                    if (resource != null) {
+                        resources.put(clazz, resource);
+                    }
+                }
+            } finally {
+                initLock.unlock();
+            }
+        }
+        return clazz.cast(resource);
+    }
+
+    /**
      *
-     * @param url
      * @param path
      * @param clazz
-     * @param executor
-     * @param factory @return
+     * @return
      */
-    private static <T> T initResourceProxy(String url, String path, Class<T> clazz, ApacheHttpClient4Executor executor, ResteasyProviderFactory factory) {
+    private <T> T initResourceProxy(String path, Class<T> clazz) {
         T t = null;
 
         try {
-             t = ProxyFactory.create(clazz, new URL(url + "/" + path).toURI(), executor, factory);
+            ServiceEndpoint[] endpoints = balancer.getEndpoints();
+            if (endpoints.length == 1) {
+                t = createRestProxy(endpoints[0], path, clazz);
+            } else {
+                Object[] targets = new Object[endpoints.length];
+                for (int i = 0; i < endpoints.length; i++) {
+                    targets[i] = createRestProxy(endpoints[i], path, clazz);
+                }
+                t = EndpointRouter.create(clazz, balancer, targets);
+            }
 
             AspectJProxyFactory aspectFactory = new AspectJProxyFactory(t);
             aspectFactory.addInterface(clazz);
             aspectFactory.addAspect(ResourceCallInterceptor.class);
+            if (responseCacheInterceptor != null && responseCacheInterceptor.isCached(clazz)) {
+                // cache hits skip the whole chain
+                aspectFactory.addAdvice(0, responseCacheInterceptor);
+            }
+            if (tracer != null && tracer.isEnabled()) {
+                // one span per resource call, retries included
+                aspectFactory.addAdvice(new TracingInterceptor(tracer, path));
+            }
+            HedgingInterceptor hedging = createHedgingInterceptor(path);
+            if (hedging != null) {
+                // every attempt passes the guard and the unauthorized retry on its own
+                aspectFactory.addAdvice(hedging);
+            }
+            ResourceGuardInterceptor guard = createResourceGuard(path);
+            if (guard != null) {
+                aspectFactory.addAdvice(guard);
+            }
+            if (unauthorizedRetryInterceptor != null) {
+                aspectFactory.addAdvice(unauthorizedRetryInterceptor);
+            }
 
             t = (T) aspectFactory.getProxy();
         } catch (URISyntaxException | MalformedURLException e) {
@@ -321,49 +1171,255 @@ public class ServicesClient {
         return t;
     }
 
-    private void initAccessToken() {
-        if (!preAuthorizedToken.isEmpty()) {
-            token = preAuthorizedToken;
-        } else if (!clientId.isEmpty()) {
-            try {
-                this.token = getAccessToken(clientId, clientSecret);
-            } catch (ProcessingException ex) {
-                SystemLogger.error(ex);
+    private <T> T createRestProxy(ServiceEndpoint endpoint, String path, Class<T> clazz) throws URISyntaxException, MalformedURLException {
+        ApacheHttpClient4Executor executor = endpoint.getPool(path).getExecutor();
+        return ProxyFactory.create(clazz, new URL(endpoint.getUrl() + "/" + path).toURI(), executor, factory);
+    }
+
+    /**
+     *
+     * @param path
+     * @return bulkhead and circuit breaker of the resource, null if both are disabled
+     */
+    private ResourceGuardInterceptor createResourceGuard(String path) {
+        int maxConcurrent = bulkheadMaxConcurrent;
+        for (String limit : bulkheadResourceLimits) {
+            String[] pathAndLimit = limit.split("=");
+            if (pathAndLimit.length == 2 && pathAndLimit[0].trim().equals(path)) {
+                maxConcurrent = Integer.parseInt(pathAndLimit[1].trim());
             }
         }
+        if (maxConcurrent <= 0 && breakerFailureThreshold <= 0) {
+            return null;
+        }
+        ResourceGuardInterceptor guard = new ResourceGuardInterceptor(
+                path,
+                maxConcurrent,
+                bulkheadWaitMillis,
+                breakerFailureThreshold,
+                breakerOpenMillis
+        );
+        resourceGuards.put(path, guard);
+        return guard;
     }
 
-    private String getAccessToken(String clientId, String clientSecret) {
-        DefaultHttpClient httpclient = new DefaultHttpClient();
-        try {
-            URL serviceUrl = new URL(url);
-            HttpHost targetHost = new HttpHost(serviceUrl.getHost(), serviceUrl.getPort());
-            httpclient.getCredentialsProvider().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(clientId, clientSecret));
+    /**
+     *
+     * @return bulkhead and circuit breaker state of every created resource
+     */
+    @ManagedAttribute
+    public String[] getResourceGuards() {
+        List<String> guards = new ArrayList<>();
+        for (ResourceGuardInterceptor guard : resourceGuards.values()) {
+            guards.add(guard.toString());
+        }
+        return guards.toArray(new String[guards.size()]);
+    }
 
-            AuthCache authCache = new BasicAuthCache();
-            BasicScheme basicAuth = new BasicScheme();
-            authCache.put(targetHost, basicAuth);
+    /**
+     *
+     * @param path
+     * @return hedging of the GET calls of the resource, null if the resource is not hedged
+     */
+    private HedgingInterceptor createHedgingInterceptor(String path) {
+        for (String hedged : hedgedResources) {
+            if (hedged.trim().equals(path)) {
+                HedgingInterceptor hedging = new HedgingInterceptor(
+                        path,
+                        getHedgeExecutor(),
+                        hedgePercentile,
+                        hedgeBudgetPercent,
+                        hedgeMinDelayMillis,
+                        hedgeMinSamples,
+                        hedgeWindowMillis
+                );
+                hedgingInterceptors.put(path, hedging);
+                return hedging;
+            }
+        }
+        return null;
+    }
 
-            BasicHttpContext localcontext = new BasicHttpContext();
-            localcontext.setAttribute(ClientContext.AUTH_CACHE, authCache);
+    /**
+     * Executor of the hedged attempts, separate from the call pool: a {@link #callInBackground} task
+     * waiting for its attempts must never wait behind queued tasks of its own executor. It hands
+     * attempts to idle threads without queueing them, a rejected call runs inline without a hedge.
+     * Callers must hold {@code initLock}.
+     *
+     * @return
+     */
+    private ExecutorService getHedgeExecutor() {
+        if (hedgeExecutor == null) {
+            int threads = hedgeThreads > 0 ? hedgeThreads : maxConnectionCount;
+            hedgeExecutor = new ThreadPoolExecutor(
+                    0,
+                    threads,
+                    60,
+                    TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger sequence = new AtomicInteger();
 
-            HttpPost httpget = new HttpPost(serviceUrl.getPath()+"/"+ API_URI_AUTH);
-            List <NameValuePair> nvps = new ArrayList <NameValuePair>();
-            nvps.add(new BasicNameValuePair("grant_type", "client_credentials"));
-            httpget.setEntity(new UrlEncodedFormEntity(nvps));
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "services-hedge-" + sequence.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }
+            );
+        }
+        return hedgeExecutor;
+    }
 
-            HttpResponse response = httpclient.execute(targetHost, httpget, localcontext);
-            HttpEntity entity = response.getEntity();
-            String responseStr = EntityUtils.toString(entity);
-            Map<String, String> respJSON = (Map<String, String>)JSONUtils.getMapper().readValue(responseStr, Map.class);
+    /**
+     *
+     * @return hedge delay and hedge counts of every hedged resource
+     */
+    @ManagedAttribute
+    public String[] getHedging() {
+        List<String> hedging = new ArrayList<>();
+        for (HedgingInterceptor interceptor : hedgingInterceptors.values()) {
+            hedging.add(interceptor.toString());
+        }
+        return hedging.toArray(new String[hedging.size()]);
+    }
 
-            token = respJSON.get("access_token");
-        } catch (IOException e) {
-            SystemLogger.error(e);
-        }finally {
-            httpclient.getConnectionManager().shutdown();
+    /**
+     *
+     * @return number of resources with an open or half open circuit breaker
+     */
+    @ManagedAttribute
+    public int getOpenCircuits() {
+        int open = 0;
+        for (ResourceGuardInterceptor guard : resourceGuards.values()) {
+            if (!"CLOSED".equals(guard.getState())) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    private void initResponseCache() {
+        Map<String, Long> ttlByMethod = new HashMap<>();
+        for (String cachedMethod : cachedMethods) {
+            String[] methodAndTtl = cachedMethod.split("=");
+            if (methodAndTtl.length != 2) {
+                SystemLogger.error(new IllegalArgumentException("Invalid cached method: " + cachedMethod));
+                continue;
+            }
+            ttlByMethod.put(methodAndTtl[0].trim(), Long.valueOf(methodAndTtl[1].trim()));
         }
+        if (!ttlByMethod.isEmpty()) {
+            responseCache = new ResponseCache(cacheMaxEntries, cacheStaleMillis, getCallPool());
+            Set<String> successCodes = new HashSet<>();
+            for (String code : cacheSuccessCodes) {
+                successCodes.add(code.trim());
+            }
+            responseCacheInterceptor = new ResponseCacheInterceptor(responseCache, ttlByMethod, successCodes);
+        }
+    }
 
-        return token;
+    /**
+     *
+     * @return
+     */
+    @ManagedAttribute
+    public long getCacheHits() {
+        return responseCache == null ? 0 : responseCache.getHits();
+    }
+
+    /**
+     *
+     * @return
+     */
+    @ManagedAttribute
+    public long getCacheStaleHits() {
+        return responseCache == null ? 0 : responseCache.getStaleHits();
+    }
+
+    /**
+     *
+     * @return
+     */
+    @ManagedAttribute
+    public long getCacheMisses() {
+        return responseCache == null ? 0 : responseCache.getMisses();
+    }
+
+    /**
+     *
+     * @return
+     */
+    @ManagedAttribute
+    public long getCacheEvictions() {
+        return responseCache == null ? 0 : responseCache.getEvictions();
+    }
+
+    /**
+     *
+     * @return
+     */
+    @ManagedAttribute
+    public long getCacheSize() {
+        return responseCache == null ? 0 : responseCache.getSize();
+    }
+
+    private void initAccessToken() {
+        tokenManager = new AccessTokenManager(
+                balancer,
+                clientId,
+                clientSecret,
+                preAuthorizedToken,
+                tokenRefreshRatio,
+                mappers.readerFor(Map.class)
+        );
+        tokenManager.start();
+        unauthorizedRetryInterceptor = new UnauthorizedRetryInterceptor(tokenManager);
+    }
+
+    /**
+     * Stops the token refresh and the thread pools and closes the pooled connections.
+     */
+    @PreDestroy
+    public void destroy() {
+        initLock.lock();
+        try {
+            shutdownConnections();
+            if (callPool != null) {
+                callPool.shutdown();
+            }
+            if (hedgeExecutor != null) {
+                hedgeExecutor.shutdown();
+            }
+            if (batchExecutor != null) {
+                batchExecutor.shutdown();
+            }
+        } finally {
+            initLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the token refresh and the schedulers and closes the pooled connections. Callers must
+     * hold {@code initLock}.
+     */
+    private void shutdownConnections() {
+        if (tokenManager != null) {
+            tokenManager.stop();
+            tokenManager = null;
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (probeScheduler != null) {
+            probeScheduler.shutdownNow();
+            probeScheduler = null;
+        }
+        for (ConnectionPool pool : getPools()) {
+            pool.shutdown();
+        }
+        balancer = null;
     }
 }
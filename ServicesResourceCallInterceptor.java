@@ -1,7 +1,6 @@
 package com.be2.services.rs;
 
 import com.be2.logging.ProtocolLogger;
-import com.be2.logging.SystemLogger;
 import com.be2.logging.MonitoringlLogger;
 import com.be2.logging.UserId;
 import com.be2.services.auth.*;
@@ -9,6 +8,22 @@ import com.be2.services.configuration.ServicesConf;
 import com.be2.services.dto.AbstractDTO;
 import com.be2.services.exception.ServicesException;
 import com.be2.services.exception.ServicesServerException;
+import com.be2.services.interception.AdaptiveConcurrencyLimiter;
+import com.be2.services.interception.ErrorDtoFactory;
+import com.be2.services.interception.InterceptionPlan;
+import com.be2.services.metrics.AlertAggregator;
+import com.be2.services.metrics.ErrorLogSampler;
+import com.be2.services.metrics.LatencyHistogram;
+import com.be2.services.metrics.StreamTimings;
+import com.be2.services.metrics.TimeMetricCell;
+import com.be2.services.metrics.WindowedStats;
+import com.be2.services.streaming.MeasuredStreamingOutput;
+import com.be2.services.trace.SpanRecord;
+import com.be2.services.trace.TraceContext;
+import com.be2.services.trace.Tracer;
+import com.be2.utils.BatchingRingBuffer;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.PhaseInterceptorChain;
 import org.apache.cxf.rs.security.oauth2.provider.OAuthServiceException;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.Signature;
@@ -16,15 +31,34 @@ import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Pointcut;
 import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.aop.support.AopUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.jmx.export.notification.NotificationPublisher;
 import org.springframework.jmx.export.notification.NotificationPublisherAware;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.management.Notification;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 
@@ -36,28 +70,82 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
     private static final String PROTOCOL = "REST";
     private static final String RESPONSE_FAIL = "fail";
     private static final String RESPONSE_SUCCESS = "success";
+    private static final int LATENCY_PRECISION_BITS = 7;
+    private static final long LATENCY_MAX_NANOS = TimeUnit.MINUTES.toNanos(2);
+    private static final int[] WINDOW_MINUTES = {1, 5, 15};
+    private static final int RETRY_AFTER_SECONDS = 1;
 
-    private AtomicLong successful = new AtomicLong();
-    private AtomicLong failed = new AtomicLong();
-    private AtomicLong total = new AtomicLong();
+    // call times in nanoseconds, the millisecond attributes are derived when read
+    private final TimeMetricCell calls = new TimeMetricCell();
+    private final TimeMetricCell successfulCalls = new TimeMetricCell();
+    private final TimeMetricCell failedCalls = new TimeMetricCell();
 
-    private AtomicLong minTime = new AtomicLong();
-    private AtomicLong maxTime = new AtomicLong();
-    private AtomicLong avgTime = new AtomicLong();
-    private AtomicLong totalTime = new AtomicLong();
+    private final ConcurrentMap<Method, InterceptionPlan> plans = new ConcurrentHashMap<>();
 
-    private AtomicLong minSuccessfulTime = new AtomicLong();
-    private AtomicLong maxSuccessfulTime = new AtomicLong();
-    private AtomicLong avgSuccessfulTime = new AtomicLong();
-    private AtomicLong totalSuccessfulTime = new AtomicLong();
+    private final long statsOriginNanos = System.nanoTime();
+    private final WindowedStats windowStats = new WindowedStats(statsOriginNanos);
+    private final ConcurrentMap<Class<?>, WindowedStats> resourceStats = new ConcurrentHashMap<>();
+    private final ConcurrentMap<InterceptionPlan, StreamTimings> streamTimings = new ConcurrentHashMap<>();
 
-    private AtomicLong minFailedTime = new AtomicLong();
-    private AtomicLong maxFailedTime = new AtomicLong();
-    private AtomicLong avgFailedTime = new AtomicLong();
-    private AtomicLong totalFailedTime = new AtomicLong();
+    /** skips the decrypt and hex managers for methods without their annotations, authorization and encrypt always run */
+    @Value("${services.rest.interceptionPlan.filterManagers:false}")
+    private boolean filterAnnotationManagers = false;
+
+    @Value("${services.rest.protocolLog.async:true}")
+    private boolean protocolLogAsync = true;
+    @Value("${services.rest.protocolLog.bufferSize:8192}")
+    private int protocolLogBufferSize = 8192;
+    @Value("${services.rest.protocolLog.batchSize:256}")
+    private int protocolLogBatchSize = 256;
+    @Value("${services.rest.protocolLog.fullPolicy:DROP}")
+    private BatchingRingBuffer.FullPolicy protocolLogFullPolicy = BatchingRingBuffer.FullPolicy.DROP;
+
+    private BatchingRingBuffer<ProtocolLogEvent> protocolLogBuffer;
+
+    @Value("${services.rest.alert.windowMillis:10000}")
+    private long alertWindowMillis = 10000;
+    @Value("${services.rest.alert.burst:3}")
+    private int alertBurst = 3;
+    @Value("${services.rest.alert.perMinute:6}")
+    private double alertsPerMinute = 6;
+
+    private AlertAggregator alertAggregator;
+
+    @Value("${services.rest.limiter.enabled:false}")
+    private boolean limiterEnabled = false;
+    @Value("${services.rest.limiter.initialLimit:100}")
+    private int limiterInitialLimit = 100;
+    @Value("${services.rest.limiter.minLimit:10}")
+    private int limiterMinLimit = 10;
+    @Value("${services.rest.limiter.maxLimit:1000}")
+    private int limiterMaxLimit = 1000;
+    @Value("${services.rest.limiter.backoffRatio:0.9}")
+    private double limiterBackoffRatio = 0.9;
+    @Value("${services.rest.limiter.latencyThresholdMillis:0}")
+    private long limiterLatencyThresholdMillis = 0;
+
+    private final ConcurrentMap<Class<?>, AdaptiveConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+
+    @Value("${services.rest.errorLog.windowMillis:60000}")
+    private long errorLogWindowMillis = 60000;
+    @Value("${services.rest.errorLog.burst:1}")
+    private int errorLogBurst = 1;
+
+    private ErrorLogSampler errorLog = new ErrorLogSampler(0, 0);
+
+    @Value("${services.rest.resourceAccounting.enabled:false}")
+    private volatile boolean resourceAccounting = false;
+    @Value("${services.rest.resourceAccounting.topMethods:10}")
+    private int resourceAccountingTopMethods = 10;
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private volatile boolean cpuTimeSupported;
+    private volatile com.sun.management.ThreadMXBean allocationBean;
 
     @Autowired
     private ServicesConf servicesConf;
+    @Autowired(required = false)
+    private Tracer tracer;
     @Autowired
     private DecryptAnnotationManager decryptAnnotationManager;
     @Autowired
@@ -81,13 +169,109 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
         this.notificationPublisher = notificationPublisher;
     }
 
+    /**
+     * Starts the background protocol log writer if asynchronous protocol logging is enabled.
+     */
+    @PostConstruct
+    public void init() {
+        setResourceAccountingEnabled(resourceAccounting);
+        errorLog = new ErrorLogSampler(errorLogWindowMillis, errorLogBurst);
+        if (protocolLogAsync) {
+            protocolLogBuffer = new BatchingRingBuffer<>(
+                    protocolLogBufferSize,
+                    protocolLogBatchSize,
+                    protocolLogFullPolicy,
+                    new BatchingRingBuffer.EventFactory<ProtocolLogEvent>() {
+                        @Override
+                        public ProtocolLogEvent newInstance() {
+                            return new ProtocolLogEvent();
+                        }
+                    },
+                    new BatchingRingBuffer.EventHandler<ProtocolLogEvent>() {
+                        @Override
+                        public void onEvent(ProtocolLogEvent event) {
+                            writeProtocolLog(event.source, event.error, event.time);
+                            event.source = null;
+                        }
+
+                        @Override
+                        public void onBatchEnd() {
+                        }
+
+                        @Override
+                        public void onStop() {
+                        }
+                    }
+            );
+            protocolLogBuffer.start("rest-protocol-log");
+        }
+        if (alertWindowMillis > 0) {
+            alertAggregator = new AlertAggregator(alertWindowMillis, alertBurst, alertsPerMinute, new AlertAggregator.Sink() {
+                @Override
+                public void emit(String source, AlertAggregator.Kind kind, long count, long maxTime, long firstTimestamp, long lastTimestamp) {
+                    String message = (kind == AlertAggregator.Kind.FAILED
+                            ? "Failed"
+                            : "Time exceeded (" + servicesConf.getMonitorAlertThresholdRestTime() + ")")
+                            + " x" + count + " (max " + maxTime + ", first " + firstTimestamp + ", last " + lastTimestamp + ")";
+                    Map<String, Long> summary = new LinkedHashMap<>();
+                    summary.put("count", count);
+                    summary.put("maxTime", maxTime);
+                    summary.put("firstTimestamp", firstTimestamp);
+                    summary.put("lastTimestamp", lastTimestamp);
+                    sendAlert(source, message, lastTimestamp, summary);
+                }
+            });
+            alertAggregator.start();
+        }
+    }
+
+    /**
+     * Writes the pending protocol log entries and stops the background writer.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (protocolLogBuffer != null) {
+            protocolLogBuffer.stop(TimeUnit.SECONDS.toMillis(5));
+        }
+        if (alertAggregator != null) {
+            alertAggregator.stop();
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    @ManagedAttribute
+    public long getProtocolLogDropped() {
+        return protocolLogBuffer == null ? 0 : protocolLogBuffer.getDropped();
+    }
+
+    /**
+     *
+     * @return
+     */
+    @ManagedAttribute
+    public long getProtocolLogBacklog() {
+        return protocolLogBuffer == null ? 0 : protocolLogBuffer.getBacklog();
+    }
+
+    /**
+     *
+     * @return number of repeated errors not logged
+     */
+    @ManagedAttribute
+    public long getErrorLogSuppressed() {
+        return errorLog.getSuppressed();
+    }
+
     /**
      *
      * @return
      */
     @ManagedAttribute
     public long getMinFailedTime() {
-        return minFailedTime.get();
+        return TimeUnit.NANOSECONDS.toMillis(failedCalls.getMinTime());
     }
 
     /**
@@ -96,7 +280,7 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
      */
     @ManagedAttribute
     public long getMaxFailedTime() {
-        return maxFailedTime.get();
+        return TimeUnit.NANOSECONDS.toMillis(failedCalls.getMaxTime());
     }
 
     /**
@@ -105,7 +289,7 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
      */
     @ManagedAttribute
     public long getAvgFailedTime() {
-        return avgFailedTime.get();
+        return TimeUnit.NANOSECONDS.toMillis(failedCalls.getAvgTime());
     }
 
     /**
@@ -114,7 +298,7 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
      */
     @ManagedAttribute
     public long getTotalFailedTime() {
-        return totalFailedTime.get();
+        return TimeUnit.NANOSECONDS.toMillis(failedCalls.getTotalTime());
     }
 
     /**
@@ -123,7 +307,7 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
      */
     @ManagedAttribute
     public long getMinSuccessfulTime() {
-        return minSuccessfulTime.get();
+        return TimeUnit.NANOSECONDS.toMillis(successfulCalls.getMinTime());
     }
 
     /**
@@ -132,7 +316,7 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
      */
     @ManagedAttribute
     public long getMaxSuccessfulTime() {
-        return maxSuccessfulTime.get();
+        return TimeUnit.NANOSECONDS.toMillis(successfulCalls.getMaxTime());
     }
 
     /**
@@ -141,7 +325,7 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
      */
     @ManagedAttribute
     public long getAvgSuccessfulTime() {
-        return avgSuccessfulTime.get();
+        return TimeUnit.NANOSECONDS.toMillis(successfulCalls.getAvgTime());
     }
 
     /**
@@ -150,7 +334,7 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
      */
     @ManagedAttribute
     public long getTotalSuccessfulTime() {
-        return totalSuccessfulTime.get();
+        return TimeUnit.NANOSECONDS.toMillis(successfulCalls.getTotalTime());
     }
 
     /**
@@ -159,7 +343,7 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
      */
     @ManagedAttribute
     public long getMinTime() {
-        return minTime.get();
+        return TimeUnit.NANOSECONDS.toMillis(calls.getMinTime());
     }
 
     /**
@@ -168,7 +352,7 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
      */
     @ManagedAttribute
     public long getMaxTime() {
-        return maxTime.get();
+        return TimeUnit.NANOSECONDS.toMillis(calls.getMaxTime());
     }
 
     /**
@@ -177,7 +361,7 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
      */
     @ManagedAttribute
     public long getAvgTime() {
-        return avgTime.get();
+        return TimeUnit.NANOSECONDS.toMillis(calls.getAvgTime());
     }
 
     /**
@@ -186,7 +370,34 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
      */
     @ManagedAttribute
     public long getTotalTime() {
-        return totalTime.get();
+        return TimeUnit.NANOSECONDS.toMillis(calls.getTotalTime());
+    }
+
+    /**
+     *
+     * @return average call time in nanoseconds
+     */
+    @ManagedAttribute
+    public long getAvgTimeNanos() {
+        return calls.getAvgTime();
+    }
+
+    /**
+     *
+     * @return average successful call time in nanoseconds
+     */
+    @ManagedAttribute
+    public long getAvgSuccessfulTimeNanos() {
+        return successfulCalls.getAvgTime();
+    }
+
+    /**
+     *
+     * @return average failed call time in nanoseconds
+     */
+    @ManagedAttribute
+    public long getAvgFailedTimeNanos() {
+        return failedCalls.getAvgTime();
     }
 
     /**
@@ -195,7 +406,7 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
      */
     @ManagedAttribute
     public long getSuccessful() {
-        return successful.get();
+        return successfulCalls.getCount();
     }
 
     /**
@@ -204,7 +415,7 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
      */
     @ManagedAttribute
     public long getFailed() {
-        return failed.get();
+        return failedCalls.getCount();
     }
 
     /**
@@ -213,7 +424,335 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
      */
     @ManagedAttribute
     public long getTotal() {
-        return total.get();
+        return calls.getCount();
+    }
+
+    /**
+     * Latency percentiles of every intercepted method, in nanoseconds.
+     *
+     * @return one line per method
+     */
+    @ManagedAttribute
+    public String[] getMethodLatencies() {
+        List<String> lines = new ArrayList<>(plans.size());
+        for (Map.Entry<Method, InterceptionPlan> entry : plans.entrySet()) {
+            LatencyHistogram.Snapshot snapshot = entry.getValue().getLatency().snapshot();
+            lines.add(entry.getValue().getSource()
+                    + " count=" + snapshot.getCount()
+                    + " p50=" + snapshot.getValueAtPercentile(50.0)
+                    + " p90=" + snapshot.getValueAtPercentile(90.0)
+                    + " p99=" + snapshot.getValueAtPercentile(99.0)
+                    + " p999=" + snapshot.getValueAtPercentile(99.9)
+                    + " max=" + snapshot.getMax());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     *
+     * @param source declaring class name and method name, e.g. {@code com.be2.services.rs.UserResourceImpl.getUser}
+     * @param percentile between 0 and 100
+     * @return latency in nanoseconds, -1 if no such method was called yet
+     */
+    @ManagedOperation
+    public long getMethodLatencyPercentile(String source, double percentile) {
+        for (Map.Entry<Method, InterceptionPlan> entry : plans.entrySet()) {
+            if (entry.getValue().getSource().equals(source)) {
+                return entry.getValue().getLatency().snapshot().getValueAtPercentile(percentile);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Annotation managers resolved for every intercepted method.
+     *
+     * @return one line per method
+     */
+    @ManagedAttribute
+    public String[] getInterceptionPlans() {
+        List<String> lines = new ArrayList<>(plans.size());
+        for (Map.Entry<Method, InterceptionPlan> entry : plans.entrySet()) {
+            lines.add(entry.getValue().getSource() + " " + entry.getValue());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     *
+     * @return calls per second over the last minute
+     */
+    @ManagedAttribute
+    public double getRequestRate1m() {
+        return windowStats.window(System.nanoTime(), 1).getRate();
+    }
+
+    /**
+     *
+     * @return calls per second over the last 5 minutes
+     */
+    @ManagedAttribute
+    public double getRequestRate5m() {
+        return windowStats.window(System.nanoTime(), 5).getRate();
+    }
+
+    /**
+     *
+     * @return calls per second over the last 15 minutes
+     */
+    @ManagedAttribute
+    public double getRequestRate15m() {
+        return windowStats.window(System.nanoTime(), 15).getRate();
+    }
+
+    /**
+     *
+     * @return failed calls divided by calls over the last minute
+     */
+    @ManagedAttribute
+    public double getErrorRatio1m() {
+        return windowStats.window(System.nanoTime(), 1).getErrorRatio();
+    }
+
+    /**
+     *
+     * @return failed calls divided by calls over the last 5 minutes
+     */
+    @ManagedAttribute
+    public double getErrorRatio5m() {
+        return windowStats.window(System.nanoTime(), 5).getErrorRatio();
+    }
+
+    /**
+     *
+     * @return failed calls divided by calls over the last 15 minutes
+     */
+    @ManagedAttribute
+    public double getErrorRatio15m() {
+        return windowStats.window(System.nanoTime(), 15).getErrorRatio();
+    }
+
+    /**
+     *
+     * @return 99th percentile latency of the last minute, in microseconds
+     */
+    @ManagedAttribute
+    public long getLatencyP99Micros1m() {
+        return windowStats.window(System.nanoTime(), 1).getLatencyPercentile(99.0);
+    }
+
+    /**
+     *
+     * @return 99th percentile latency of the last 5 minutes, in microseconds
+     */
+    @ManagedAttribute
+    public long getLatencyP99Micros5m() {
+        return windowStats.window(System.nanoTime(), 5).getLatencyPercentile(99.0);
+    }
+
+    /**
+     *
+     * @return 99th percentile latency of the last 15 minutes, in microseconds
+     */
+    @ManagedAttribute
+    public long getLatencyP99Micros15m() {
+        return windowStats.window(System.nanoTime(), 15).getLatencyPercentile(99.0);
+    }
+
+    /**
+     * Rates, error ratios and latency percentiles of the last 1, 5 and 15 minutes,
+     * of all calls and of every resource class.
+     *
+     * @return one line per window
+     */
+    @ManagedAttribute
+    public String[] getWindowStats() {
+        long now = System.nanoTime();
+        List<String> lines = new ArrayList<>((resourceStats.size() + 1) * WINDOW_MINUTES.length);
+        for (int minutes : WINDOW_MINUTES) {
+            lines.add("all " + minutes + "m " + windowStats.window(now, minutes));
+        }
+        for (Map.Entry<Class<?>, WindowedStats> entry : resourceStats.entrySet()) {
+            for (int minutes : WINDOW_MINUTES) {
+                lines.add(entry.getKey().getName() + " " + minutes + "m " + entry.getValue().window(now, minutes));
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     *
+     * @param resourceClass class name, e.g. {@code com.be2.services.rs.UserResourceImpl}
+     * @param minutes between 1 and 15
+     * @return calls per second, -1 if the resource class was not called yet
+     */
+    @ManagedOperation
+    public double getResourceRequestRate(String resourceClass, int minutes) {
+        WindowedStats stats = findResourceStats(resourceClass);
+        return stats == null ? -1 : stats.window(System.nanoTime(), minutes).getRate();
+    }
+
+    /**
+     *
+     * @param resourceClass class name, e.g. {@code com.be2.services.rs.UserResourceImpl}
+     * @param minutes between 1 and 15
+     * @return failed calls divided by calls, -1 if the resource class was not called yet
+     */
+    @ManagedOperation
+    public double getResourceErrorRatio(String resourceClass, int minutes) {
+        WindowedStats stats = findResourceStats(resourceClass);
+        return stats == null ? -1 : stats.window(System.nanoTime(), minutes).getErrorRatio();
+    }
+
+    /**
+     *
+     * @param resourceClass class name, e.g. {@code com.be2.services.rs.UserResourceImpl}
+     * @param minutes between 1 and 15
+     * @param percentile between 0 and 100
+     * @return latency in microseconds, -1 if the resource class was not called yet
+     */
+    @ManagedOperation
+    public long getResourceLatencyPercentile(String resourceClass, int minutes, double percentile) {
+        WindowedStats stats = findResourceStats(resourceClass);
+        return stats == null ? -1 : stats.window(System.nanoTime(), minutes).getLatencyPercentile(percentile);
+    }
+
+    private WindowedStats findResourceStats(String resourceClass) {
+        for (Map.Entry<Class<?>, WindowedStats> entry : resourceStats.entrySet()) {
+            if (entry.getKey().getName().equals(resourceClass)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @return true if thread CPU time and allocated bytes are recorded per method
+     */
+    @ManagedAttribute
+    public boolean isResourceAccountingEnabled() {
+        return resourceAccounting;
+    }
+
+    /**
+     * Enables or disables the recording of thread CPU time and allocated bytes per method.
+     * Each accounted call reads the thread CPU time and allocation counters twice.
+     *
+     * @param enabled
+     */
+    @ManagedAttribute
+    public void setResourceAccountingEnabled(boolean enabled) {
+        if (enabled) {
+            cpuTimeSupported = threadBean.isCurrentThreadCpuTimeSupported();
+            if (cpuTimeSupported && !threadBean.isThreadCpuTimeEnabled()) {
+                threadBean.setThreadCpuTimeEnabled(true);
+            }
+            if (threadBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+                if (bean.isThreadAllocatedMemorySupported()) {
+                    if (!bean.isThreadAllocatedMemoryEnabled()) {
+                        bean.setThreadAllocatedMemoryEnabled(true);
+                    }
+                    allocationBean = bean;
+                }
+            }
+        }
+        resourceAccounting = enabled && (cpuTimeSupported || allocationBean != null);
+    }
+
+    /**
+     * Methods with the highest summed thread CPU time, recorded while resource accounting is enabled.
+     *
+     * @return one line per method
+     */
+    @ManagedAttribute
+    public String[] getTopCpuMethods() {
+        return getTopUsage(true);
+    }
+
+    /**
+     * Methods with the most allocated bytes, recorded while resource accounting is enabled.
+     *
+     * @return one line per method
+     */
+    @ManagedAttribute
+    public String[] getTopAllocatingMethods() {
+        return getTopUsage(false);
+    }
+
+    private String[] getTopUsage(final boolean cpu) {
+        List<InterceptionPlan> accounted = new ArrayList<>();
+        for (InterceptionPlan plan : plans.values()) {
+            if (plan.getUsage().getCalls() > 0) {
+                accounted.add(plan);
+            }
+        }
+        Collections.sort(accounted, new Comparator<InterceptionPlan>() {
+            @Override
+            public int compare(InterceptionPlan first, InterceptionPlan second) {
+                return cpu
+                        ? Long.compare(second.getUsage().getCpuNanos(), first.getUsage().getCpuNanos())
+                        : Long.compare(second.getUsage().getAllocatedBytes(), first.getUsage().getAllocatedBytes());
+            }
+        });
+        int count = Math.min(accounted.size(), resourceAccountingTopMethods);
+        String[] lines = new String[count];
+        for (int i = 0; i < count; i++) {
+            InterceptionPlan plan = accounted.get(i);
+            lines[i] = plan.getSource() + " " + plan.getUsage();
+        }
+        return lines;
+    }
+
+    private long currentThreadCpuTime() {
+        return cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : -1;
+    }
+
+    private long currentThreadAllocatedBytes() {
+        com.sun.management.ThreadMXBean bean = this.allocationBean;
+        return bean == null ? -1 : bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Time to first byte and total time of streamed responses, in nanoseconds.
+     *
+     * @return one line per method returning a StreamingOutput
+     */
+    @ManagedAttribute
+    public String[] getStreamTimings() {
+        List<String> lines = new ArrayList<>(streamTimings.size());
+        for (Map.Entry<InterceptionPlan, StreamTimings> entry : streamTimings.entrySet()) {
+            lines.add(entry.getKey().getSource() + " " + entry.getValue());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Current concurrency limit of every limited resource class.
+     *
+     * @return one line per resource class
+     */
+    @ManagedAttribute
+    public String[] getConcurrencyLimits() {
+        List<String> lines = new ArrayList<>(limiters.size());
+        for (Map.Entry<Class<?>, AdaptiveConcurrencyLimiter> entry : limiters.entrySet()) {
+            lines.add(entry.getKey().getName() + " " + entry.getValue());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     *
+     * @return number of calls rejected by the concurrency limiters
+     */
+    @ManagedAttribute
+    public long getConcurrencyRejections() {
+        long rejections = 0;
+        for (AdaptiveConcurrencyLimiter limiter : limiters.values()) {
+            rejections += limiter.getRejections();
+        }
+        return rejections;
     }
 
     /**
@@ -233,29 +772,47 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
     @Around("handleAccess()")
     public Object restCallErrorHandling(ProceedingJoinPoint pjp)
     throws Throwable {
-        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        long startCpuNanos = resourceAccounting ? currentThreadCpuTime() : -1;
+        long startAllocatedBytes = resourceAccounting ? currentThreadAllocatedBytes() : -1;
         boolean error = false;
+        boolean rejected = false;
+        InterceptionPlan plan = null;
         Method method = null;
+        AdaptiveConcurrencyLimiter limiter = null;
+        TraceContext span = null;
         try {
-            Object[] preProcessed = preProcess(pjp);
-            method = (Method) preProcessed[0];
-            Object obj = pjp.proceed((Object[]) preProcessed[1]);
-            obj = postProcess(method, obj);
-            successful.incrementAndGet();
-            return obj;
+            plan = getPlan(pjp);
+            method = plan.getMethod();
+            span = startSpan();
+            if (plan.getLimiter() != null) {
+                if (!plan.getLimiter().tryAcquire()) {
+                    rejected = true;
+                    throw new WebApplicationException(overloaded());
+                }
+                limiter = plan.getLimiter();
+            }
+            Object obj = pjp.proceed(preProcess(plan, pjp));
+            obj = postProcess(plan, obj);
+            return measureStreaming(plan, obj, startNanos);
+        } catch (WebApplicationException e) {
+            if (rejected) {
+                throw e;
+            }
+            error = true;
+            errorLog.log(e, plan != null ? plan.getSource() : null);
+            throw new ServicesServerException(e);
         } catch (ServicesException e) {
-            failed.incrementAndGet();
             error = true;
-            SystemLogger.error(e);
+            errorLog.log(e, plan != null ? plan.getSource() : null);
             if (method == null) {
                 method = getMethod(pjp);
             }
-            Class returnType = null;
-            if (method != null) {
-                returnType = method.getReturnType();
-            }
-            if (returnType != null && AbstractDTO.class.isAssignableFrom(returnType)) {
-                AbstractDTO dto = (AbstractDTO) returnType.newInstance();
+            ErrorDtoFactory dtoFactory = plan != null
+                    ? plan.getErrorDtoFactory()
+                    : ErrorDtoFactory.forType(method == null ? null : method.getReturnType());
+            if (dtoFactory != null) {
+                AbstractDTO dto = dtoFactory.newInstance();
                 dto.setResultCode(e.getErrorCode());
                 dto.setResultMessages(e.getErrorMessages());
                 return dto;
@@ -263,32 +820,160 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
                 throw e;
             }
         } catch (Throwable e) {
-            failed.incrementAndGet();
             error = true;
-            SystemLogger.error(e);
+            errorLog.log(e, plan != null ? plan.getSource() : null);
             throw new ServicesServerException(e);
         } finally {
-            long time = System.currentTimeMillis() - start;
-            total.incrementAndGet();
-            if (method == null) {
-                method = getMethod(pjp);
-            }
-            String source = method == null ? "N/A" : method.getDeclaringClass().getName() + "." + method.getName();
-            ProtocolLogger.log(
-                    UserId.SYSTEM,
-                    PROTOCOL,
-                    source,
-                    error ? RESPONSE_FAIL : RESPONSE_SUCCESS,
-                    "" + time
-            );
-            calculateTime(time, this.total.get(), this.minTime, this.maxTime, this.avgTime, this.totalTime);
-            if (error) {
-                calculateTime(time, this.failed.get(), this.minFailedTime, this.maxFailedTime, this.avgFailedTime, this.totalFailedTime);
+            long endNanos = System.nanoTime();
+            long nanos = endNanos - startNanos;
+            long time = TimeUnit.NANOSECONDS.toMillis(nanos);
+            if (rejected) {
+                // counted by the limiter only, a shed call is neither a failure nor a latency sample
+                if (span != null) {
+                    tracer.endSpan(span, SpanRecord.Kind.SERVER, plan.getSource(), System.currentTimeMillis() - time, nanos, true);
+                }
             } else {
-                calculateTime(time, this.successful.get(), this.minSuccessfulTime, this.maxSuccessfulTime, this.avgSuccessfulTime, this.totalSuccessfulTime);
+                if (method == null) {
+                    method = getMethod(pjp);
+                }
+                windowStats.record(endNanos, nanos, error);
+                if (plan != null) {
+                    plan.getLatency().record(nanos);
+                    plan.getResourceStats().record(endNanos, nanos, error);
+                    if (startCpuNanos >= 0 || startAllocatedBytes >= 0) {
+                        plan.getUsage().record(
+                                startCpuNanos < 0 ? -1 : currentThreadCpuTime() - startCpuNanos,
+                                startAllocatedBytes < 0 ? -1 : currentThreadAllocatedBytes() - startAllocatedBytes
+                        );
+                    }
+                }
+                if (limiter != null) {
+                    limiter.release(nanos, error);
+                }
+                String source = plan != null ? plan.getSource() : method == null ? "N/A" : getSource(method);
+                if (span != null) {
+                    tracer.endSpan(span, SpanRecord.Kind.SERVER, source, System.currentTimeMillis() - time, nanos, error);
+                }
+                logProtocol(source, error, time);
+                calls.record(nanos);
+                if (error) {
+                    failedCalls.record(nanos);
+                } else {
+                    successfulCalls.record(nanos);
+                }
+                alert(error, time, source);
+            }
+        }
+    }
+
+    /**
+     * Answer of a call shed by the concurrency limiter: 503 with a retry hint, so clients can tell
+     * overload from a failure of the call and back off.
+     *
+     * @return
+     */
+    private static Response overloaded() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", RETRY_AFTER_SECONDS)
+                .build();
+    }
+
+    /**
+     * Wraps a streamed result, so the time until its first byte and until its end are measured
+     * when the container writes it.
+     *
+     * @param plan
+     * @param result
+     * @param startNanos
+     * @return the result, or the wrapped result if it is streamed
+     */
+    private Object measureStreaming(InterceptionPlan plan, Object result, long startNanos) {
+        if (result instanceof StreamingOutput) {
+            return new MeasuredStreamingOutput((StreamingOutput) result, getStreamTimings(plan), startNanos);
+        }
+        if (result instanceof Response && ((Response) result).getEntity() instanceof StreamingOutput) {
+            Response response = (Response) result;
+            return Response.fromResponse(response)
+                    .entity(new MeasuredStreamingOutput((StreamingOutput) response.getEntity(), getStreamTimings(plan), startNanos))
+                    .build();
+        }
+        return result;
+    }
+
+    private StreamTimings getStreamTimings(InterceptionPlan plan) {
+        StreamTimings timings = streamTimings.get(plan);
+        if (timings == null) {
+            StreamTimings created = new StreamTimings();
+            timings = streamTimings.putIfAbsent(plan, created);
+            if (timings == null) {
+                timings = created;
             }
-            alert(error, time, source);
         }
+        return timings;
+    }
+
+    /**
+     * Starts the server span of the call, continuing the trace of the caller if its
+     * {@code traceparent} header is sampled.
+     *
+     * @return the span, null if tracing is disabled or the call is not sampled
+     */
+    private TraceContext startSpan() {
+        Tracer tracer = this.tracer;
+        if (tracer == null || !tracer.isEnabled()) {
+            return null;
+        }
+        return tracer.startServerSpan(getTraceparent());
+    }
+
+    /**
+     *
+     * @return {@code traceparent} header of the current CXF request, null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    private static String getTraceparent() {
+        Message message = PhaseInterceptorChain.getCurrentMessage();
+        if (message == null) {
+            return null;
+        }
+        // CXF keeps the protocol headers in a case insensitive map
+        Map<String, List<String>> headers = (Map<String, List<String>>) message.get(Message.PROTOCOL_HEADERS);
+        List<String> values = headers == null ? null : headers.get(TraceContext.HEADER);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Hands the protocol log entry to the background writer, or writes it directly if
+     * asynchronous protocol logging is disabled.
+     *
+     * @param source
+     * @param error
+     * @param time
+     */
+    private void logProtocol(String source, boolean error, long time) {
+        BatchingRingBuffer<ProtocolLogEvent> buffer = this.protocolLogBuffer;
+        if (buffer == null) {
+            writeProtocolLog(source, error, time);
+            return;
+        }
+        long sequence = buffer.claim();
+        if (sequence >= 0) {
+            ProtocolLogEvent event = buffer.get(sequence);
+            event.source = source;
+            event.error = error;
+            event.time = time;
+            buffer.publish(sequence);
+        }
+    }
+
+    private static void writeProtocolLog(String source, boolean error, long time) {
+        ProtocolLogger.log(
+                UserId.SYSTEM,
+                PROTOCOL,
+                source,
+                error ? RESPONSE_FAIL : RESPONSE_SUCCESS,
+                Long.toString(time)
+        );
     }
 
     /**
@@ -299,96 +984,179 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
     public void alert(boolean error, long time, String source) {
         if (this.notificationPublisher != null) {
             if (error && servicesConf.isMonitorAlertEnabledRestFailed()) {
-                long alertSequence = localSequence.getAndIncrement();
-                final Notification notification = new Notification(
-                        "REST alert",
-                        source,
-                        alertSequence,
-                        "Failed"
-                );
-                notificationPublisher.sendNotification(notification);
-                if(servicesConf.isMonitorAlertEnabledRESTLog()) {
-                    MonitoringlLogger.log(
-                            alertSequence,
-                            notification.getType(),
-                            notification.getSource().toString(),
-                            notification.getMessage()
-                    );
+                if (alertAggregator != null) {
+                    alertAggregator.record(source, AlertAggregator.Kind.FAILED, time);
+                } else {
+                    sendAlert(source, "Failed", System.currentTimeMillis(), null);
                 }
             }
             if (time > servicesConf.getMonitorAlertThresholdRestTime() && servicesConf.isMonitorAlertEnabledRestTime()) {
-                long alertSequence = localSequence.getAndIncrement();
-                final Notification notification = new Notification(
-                        "REST alert",
-                        source,
-                        alertSequence,
-                        "Time exceeded (" + servicesConf.getMonitorAlertThresholdRestTime() + "): " + time
-                );
-                notificationPublisher.sendNotification(notification);
-                if(servicesConf.isMonitorAlertEnabledRESTLog()) {
-                    MonitoringlLogger.log(
-                            alertSequence,
-                            notification.getType(),
-                            notification.getSource().toString(),
-                            notification.getMessage()
-                    );
+                if (alertAggregator != null) {
+                    alertAggregator.record(source, AlertAggregator.Kind.TIME_EXCEEDED, time);
+                } else {
+                    sendAlert(source, timeExceededMessage(time), System.currentTimeMillis(), null);
                 }
             }
         }
     }
 
+    private String timeExceededMessage(long time) {
+        return "Time exceeded (" + servicesConf.getMonitorAlertThresholdRestTime() + "): " + time;
+    }
+
     /**
      *
-     * @param time
-     * @param total
-     * @param minTime
-     * @param maxTime
-     * @param avgTime
-     * @param totalTime
+     * @param source
+     * @param message
+     * @param timestamp
+     * @param userData summary of a coalesced alert, null for a single one
+     */
+    private void sendAlert(String source, String message, long timestamp, Object userData) {
+        NotificationPublisher publisher = this.notificationPublisher;
+        if (publisher == null) {
+            return;
+        }
+        long alertSequence = localSequence.getAndIncrement();
+        final Notification notification = new Notification(
+                "REST alert",
+                source,
+                alertSequence,
+                timestamp,
+                message
+        );
+        notification.setUserData(userData);
+        publisher.sendNotification(notification);
+        if(servicesConf.isMonitorAlertEnabledRESTLog()) {
+            MonitoringlLogger.log(
+                    alertSequence,
+                    notification.getType(),
+                    notification.getSource().toString(),
+                    notification.getMessage()
+            );
+        }
+    }
+
+    /**
+     * For a method execution the method is read from the join point signature, so a call costs
+     * one map lookup. Only other signatures fall back to the reflective lookup of {@link #getMethod}.
+     *
+     * @param pjp
+     * @return plan of the called method, created on first call
+     * @throws NoSuchMethodException
+     */
+    private InterceptionPlan getPlan(ProceedingJoinPoint pjp) throws NoSuchMethodException {
+        Signature signature = pjp.getSignature();
+        Method method = signature instanceof MethodSignature ? ((MethodSignature) signature).getMethod() : getMethod(pjp);
+        InterceptionPlan plan = plans.get(method);
+        if (plan == null) {
+            Object target = pjp.getTarget();
+            InterceptionPlan created = InterceptionPlan.create(
+                    method,
+                    target == null ? null : AopUtils.getTargetClass(target),
+                    filterAnnotationManagers,
+                    new LatencyHistogram(LATENCY_PRECISION_BITS, LATENCY_MAX_NANOS),
+                    limiterEnabled ? getLimiter(method.getDeclaringClass()) : null,
+                    getResourceStats(method.getDeclaringClass())
+            );
+            plan = plans.putIfAbsent(method, created);
+            if (plan == null) {
+                plan = created;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     *
+     * @param resourceClass
+     * @return concurrency limiter shared by all methods of the resource class
      */
-    private void calculateTime(long time, long total, AtomicLong minTime, AtomicLong maxTime, AtomicLong avgTime, AtomicLong totalTime) {
-        // here the values can be inaccurate due to lost atomicity,
-        // but it is acceptable from statistical perspective
-        long min = minTime.get();
-        if (time < min || min == 0) {
-            minTime.set(time);
+    private AdaptiveConcurrencyLimiter getLimiter(Class<?> resourceClass) {
+        AdaptiveConcurrencyLimiter limiter = limiters.get(resourceClass);
+        if (limiter == null) {
+            AdaptiveConcurrencyLimiter created = new AdaptiveConcurrencyLimiter(
+                    limiterInitialLimit,
+                    limiterMinLimit,
+                    limiterMaxLimit,
+                    limiterBackoffRatio,
+                    limiterLatencyThresholdMillis > 0
+                            ? limiterLatencyThresholdMillis
+                            : servicesConf.getMonitorAlertThresholdRestTime()
+            );
+            limiter = limiters.putIfAbsent(resourceClass, created);
+            if (limiter == null) {
+                limiter = created;
+            }
         }
-        // here the values can be inaccurate due to lost atomicity,
-        // but it is acceptable from statistical perspective
-        if (time > maxTime.get()) {
-            maxTime.set(time);
+        return limiter;
+    }
+
+    /**
+     *
+     * @param resourceClass
+     * @return windowed statistics shared by all methods of the resource class
+     */
+    private WindowedStats getResourceStats(Class<?> resourceClass) {
+        WindowedStats stats = resourceStats.get(resourceClass);
+        if (stats == null) {
+            WindowedStats created = new WindowedStats(statsOriginNanos);
+            stats = resourceStats.putIfAbsent(resourceClass, created);
+            if (stats == null) {
+                stats = created;
+            }
         }
-        long totalTimeValue = totalTime.addAndGet(time);
-        avgTime.set(total == 0 ? 0 : totalTimeValue / total);
+        return stats;
+    }
+
+    private static String getSource(Method method) {
+        return method.getDeclaringClass().getName() + "." + method.getName();
     }
 
     /**
+     * Runs the annotation managers of the plan on the call arguments.
      *
+     * @param plan
      * @param pjp
+     * @return the processed arguments to proceed with
      * @throws OAuthServiceException
      */
     @SuppressWarnings("all")
-    private Object[] preProcess(ProceedingJoinPoint pjp) throws OAuthServiceException, NoSuchMethodException {
-        Method method = getMethod(pjp);
+    private Object[] preProcess(InterceptionPlan plan, ProceedingJoinPoint pjp) throws OAuthServiceException, NoSuchMethodException {
+        Method method = plan.getMethod();
         Object[] args = pjp.getArgs();
-        hexAnnotationManager.execute(method.getDeclaringClass(), method, args);
-        decryptAnnotationManager.execute(method.getDeclaringClass(), method, args);
-        subjectAnnotationManager.execute(method.getDeclaringClass(), method, args);
-        productAnnotationManager.execute(method.getDeclaringClass(), method, args);
-        resourceRoleAnnotationManager.execute(method.getDeclaringClass(), method, args);
-        return new Object[] {method, args};
+        boolean all = !plan.covers(args);
+        if (all || plan.applies(InterceptionPlan.Step.HEX)) {
+            hexAnnotationManager.execute(method.getDeclaringClass(), method, args);
+        }
+        if (all || plan.applies(InterceptionPlan.Step.DECRYPT)) {
+            decryptAnnotationManager.execute(method.getDeclaringClass(), method, args);
+        }
+        if (plan.applies(InterceptionPlan.Step.SUBJECT)) {
+            subjectAnnotationManager.execute(method.getDeclaringClass(), method, args);
+        }
+        if (plan.applies(InterceptionPlan.Step.PRODUCT)) {
+            productAnnotationManager.execute(method.getDeclaringClass(), method, args);
+        }
+        if (plan.applies(InterceptionPlan.Step.RESOURCE_ROLE)) {
+            resourceRoleAnnotationManager.execute(method.getDeclaringClass(), method, args);
+        }
+        return args;
     }
 
     /**
      *
-     * @param method
+     * @param plan
      * @param result
      * @return
      * @throws OAuthServiceException
      * @throws NoSuchMethodException
      */
     @SuppressWarnings("all")
-    private Object postProcess(Method method, Object result) throws OAuthServiceException, NoSuchMethodException {
+    private Object postProcess(InterceptionPlan plan, Object result) throws OAuthServiceException, NoSuchMethodException {
+        if (!plan.applies(InterceptionPlan.Step.ENCRYPT)) {
+            return result;
+        }
+        Method method = plan.getMethod();
         Object[] objs = new Object[] {result};
         encryptAnnotationManager.execute(method.getDeclaringClass(), method, objs);
         return objs[0];
@@ -424,4 +1192,13 @@ public class ServicesResourceCallInterceptor implements NotificationPublisherAwa
         }
         return method;
     }
+
+    /**
+     * Preallocated protocol log record of the asynchronous writer.
+     */
+    private static class ProtocolLogEvent {
+        private String source;
+        private boolean error;
+        private long time;
+    }
 }
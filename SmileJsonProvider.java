@@ -0,0 +1,37 @@
+package com.be2.services.client;
+
+import org.codehaus.jackson.jaxrs.JacksonJsonProvider;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Jackson 1 provider of {@value WireFormatInterceptor#SMILE}, so Smile responses are read with
+ * the same annotations as JSON ones.
+ */
+@Provider
+@Consumes(WireFormatInterceptor.SMILE)
+@Produces(WireFormatInterceptor.SMILE)
+public class SmileJsonProvider extends JacksonJsonProvider {
+
+    private static final MediaType SMILE_TYPE = MediaType.valueOf(WireFormatInterceptor.SMILE);
+
+    /**
+     *
+     * @param mapper mapper created on a Smile factory
+     */
+    public SmileJsonProvider(ObjectMapper mapper) {
+        super(mapper);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isJsonType(MediaType mediaType) {
+        return mediaType != null && SMILE_TYPE.isCompatible(mediaType);
+    }
+}
@@ -0,0 +1,23 @@
+package com.be2.services.trace;
+
+/**
+ * Receives finished spans on the tracer export thread.
+ */
+public interface SpanExporter {
+
+    /**
+     *
+     * @param span valid only during the call
+     */
+    void export(SpanRecord span);
+
+    /**
+     * Called after each exported batch.
+     */
+    void flush();
+
+    /**
+     * Called once when the tracer stops.
+     */
+    void close();
+}
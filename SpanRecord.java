@@ -0,0 +1,127 @@
+package com.be2.services.trace;
+
+/**
+ * Preallocated record of a finished span, reused by the tracer ring buffer.
+ * <p>
+ * A record is only valid during {@link SpanExporter#export(SpanRecord)}, exporters that keep
+ * spans must copy them.
+ */
+public final class SpanRecord {
+
+    /**
+     * Side of the call the span was recorded on.
+     */
+    public enum Kind {
+        CLIENT,
+        SERVER
+    }
+
+    long traceIdHigh;
+    long traceIdLow;
+    long spanId;
+    long parentSpanId;
+    Kind kind;
+    String name;
+    long startMillis;
+    long durationNanos;
+    boolean error;
+
+    /**
+     *
+     * @return 32 hex digit trace id
+     */
+    public String getTraceId() {
+        StringBuilder traceId = new StringBuilder(32);
+        TraceContext.appendHex(traceId, traceIdHigh);
+        TraceContext.appendHex(traceId, traceIdLow);
+        return traceId.toString();
+    }
+
+    /**
+     *
+     * @return 16 hex digit span id
+     */
+    public String getSpanId() {
+        StringBuilder id = new StringBuilder(16);
+        TraceContext.appendHex(id, spanId);
+        return id.toString();
+    }
+
+    /**
+     *
+     * @return 16 hex digit parent span id, null for a root span
+     */
+    public String getParentSpanId() {
+        if (parentSpanId == 0) {
+            return null;
+        }
+        StringBuilder id = new StringBuilder(16);
+        TraceContext.appendHex(id, parentSpanId);
+        return id.toString();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     *
+     * @return called resource method
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     *
+     * @return wall clock start time
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public boolean isError() {
+        return error;
+    }
+
+    /**
+     *
+     * @return {@code traceId spanId parentSpanId kind name startMillis durationMicros ok|error}
+     */
+    @Override
+    public String toString() {
+        StringBuilder line = new StringBuilder(128);
+        TraceContext.appendHex(line, traceIdHigh);
+        TraceContext.appendHex(line, traceIdLow);
+        line.append(' ');
+        TraceContext.appendHex(line, spanId);
+        line.append(' ');
+        if (parentSpanId == 0) {
+            line.append('-');
+        } else {
+            TraceContext.appendHex(line, parentSpanId);
+        }
+        return line.append(' ').append(kind)
+                .append(' ').append(name)
+                .append(' ').append(startMillis)
+                .append(' ').append(durationNanos / 1000)
+                .append(' ').append(error ? "error" : "ok")
+                .toString();
+    }
+}
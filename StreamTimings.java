@@ -0,0 +1,51 @@
+package com.be2.services.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time to first byte, total time and size of the streamed responses of one method.
+ * Times are measured from the start of the intercepted call, in nanoseconds.
+ */
+public class StreamTimings {
+
+    private static final int LATENCY_PRECISION_BITS = 7;
+    private static final long LATENCY_MAX_NANOS = TimeUnit.HOURS.toNanos(2);
+
+    private final LatencyHistogram firstByte = new LatencyHistogram(LATENCY_PRECISION_BITS, LATENCY_MAX_NANOS);
+    private final LatencyHistogram total = new LatencyHistogram(LATENCY_PRECISION_BITS, LATENCY_MAX_NANOS);
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     *
+     * @param firstByteNanos -1 if nothing was written
+     * @param totalNanos
+     * @param written
+     * @param error
+     */
+    public void record(long firstByteNanos, long totalNanos, long written, boolean error) {
+        if (firstByteNanos >= 0) {
+            firstByte.record(firstByteNanos);
+        }
+        total.record(totalNanos);
+        bytes.add(written);
+        if (error) {
+            failed.increment();
+        }
+    }
+
+    @Override
+    public String toString() {
+        LatencyHistogram.Snapshot firstByteSnapshot = firstByte.snapshot();
+        LatencyHistogram.Snapshot totalSnapshot = total.snapshot();
+        return "count=" + totalSnapshot.getCount()
+                + " failed=" + failed.sum()
+                + " bytes=" + bytes.sum()
+                + " firstByteP50=" + firstByteSnapshot.getValueAtPercentile(50.0)
+                + " firstByteP99=" + firstByteSnapshot.getValueAtPercentile(99.0)
+                + " totalP50=" + totalSnapshot.getValueAtPercentile(50.0)
+                + " totalP99=" + totalSnapshot.getValueAtPercentile(99.0)
+                + " totalMax=" + totalSnapshot.getMax();
+    }
+}
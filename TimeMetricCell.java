@@ -0,0 +1,93 @@
+package com.be2.services.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call count and call time statistics backed by striped accumulators.
+ * <p>
+ * Count and total time are {@link LongAdder}s, so concurrent writers do not contend on a
+ * single cache line. Minimum and maximum are kept with CAS loops that only write when the
+ * extreme actually changes, and the average is derived when read.
+ */
+public class TimeMetricCell {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalTime = new LongAdder();
+    private final AtomicLong minTime = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maxTime = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     *
+     * @param time
+     */
+    public void record(long time) {
+        count.increment();
+        totalTime.add(time);
+        updateMin(time);
+        updateMax(time);
+    }
+
+    private void updateMin(long time) {
+        long current = minTime.get();
+        while (time < current) {
+            if (minTime.compareAndSet(current, time)) {
+                return;
+            }
+            current = minTime.get();
+        }
+    }
+
+    private void updateMax(long time) {
+        long current = maxTime.get();
+        while (time > current) {
+            if (maxTime.compareAndSet(current, time)) {
+                return;
+            }
+            current = maxTime.get();
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getTotalTime() {
+        return totalTime.sum();
+    }
+
+    /**
+     *
+     * @return 0 if nothing was recorded yet
+     */
+    public long getMinTime() {
+        long min = minTime.get();
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    /**
+     *
+     * @return 0 if nothing was recorded yet
+     */
+    public long getMaxTime() {
+        long max = maxTime.get();
+        return max == Long.MIN_VALUE ? 0 : max;
+    }
+
+    /**
+     *
+     * @return 0 if nothing was recorded yet
+     */
+    public long getAvgTime() {
+        long calls = count.sum();
+        return calls == 0 ? 0 : totalTime.sum() / calls;
+    }
+}
@@ -0,0 +1,117 @@
+package com.be2.services.trace;
+
+/**
+ * Identifiers of one sampled span, propagated as a W3C {@code traceparent} header.
+ * <p>
+ * Only sampled spans get a context, unsampled calls carry no header and allocate nothing.
+ */
+public final class TraceContext {
+
+    /**
+     * Header name of the W3C trace context.
+     */
+    public static final String HEADER = "traceparent";
+
+    private static final String VERSION = "00";
+    private static final String FLAGS_SAMPLED = "01";
+    private static final int HEADER_LENGTH = 55;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long traceIdHigh;
+    private final long traceIdLow;
+    private final long spanId;
+    private final long parentSpanId;
+    private final TraceContext previous;
+
+    TraceContext(long traceIdHigh, long traceIdLow, long spanId, long parentSpanId, TraceContext previous) {
+        this.traceIdHigh = traceIdHigh;
+        this.traceIdLow = traceIdLow;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.previous = previous;
+    }
+
+    /**
+     *
+     * @param header value of a {@code traceparent} header
+     * @return remote parent span, null if the header is missing, invalid or not sampled
+     */
+    static TraceContext parse(String header) {
+        if (header == null) {
+            return null;
+        }
+        header = header.trim();
+        // version 00 is exactly this long, later versions may append fields
+        if (header.length() < HEADER_LENGTH || header.charAt(2) != '-' || header.charAt(35) != '-' || header.charAt(52) != '-') {
+            return null;
+        }
+        try {
+            long traceIdHigh = Long.parseUnsignedLong(header.substring(3, 19), 16);
+            long traceIdLow = Long.parseUnsignedLong(header.substring(19, 35), 16);
+            long spanId = Long.parseUnsignedLong(header.substring(36, 52), 16);
+            int flags = Integer.parseInt(header.substring(53, 55), 16);
+            if ((traceIdHigh == 0 && traceIdLow == 0) || spanId == 0 || (flags & 1) == 0) {
+                return null;
+            }
+            return new TraceContext(traceIdHigh, traceIdLow, spanId, 0, null);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     *
+     * @return value of the {@code traceparent} header naming this span as parent
+     */
+    public String toHeader() {
+        StringBuilder header = new StringBuilder(HEADER_LENGTH);
+        header.append(VERSION).append('-');
+        appendHex(header, traceIdHigh);
+        appendHex(header, traceIdLow);
+        header.append('-');
+        appendHex(header, spanId);
+        header.append('-').append(FLAGS_SAMPLED);
+        return header.toString();
+    }
+
+    /**
+     * Appends a long as 16 lower case hex digits.
+     *
+     * @param builder
+     * @param value
+     */
+    static void appendHex(StringBuilder builder, long value) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            builder.append(HEX[(int) (value >>> shift) & 0xf]);
+        }
+    }
+
+    long getTraceIdHigh() {
+        return traceIdHigh;
+    }
+
+    long getTraceIdLow() {
+        return traceIdLow;
+    }
+
+    long getSpanId() {
+        return spanId;
+    }
+
+    long getParentSpanId() {
+        return parentSpanId;
+    }
+
+    /**
+     *
+     * @return span that was current on the thread before this one started
+     */
+    TraceContext getPrevious() {
+        return previous;
+    }
+
+    @Override
+    public String toString() {
+        return toHeader();
+    }
+}
@@ -0,0 +1,266 @@
+package com.be2.services.trace;
+
+import com.be2.utils.BatchingRingBuffer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records client and server spans of REST calls and exports them in batches.
+ * <p>
+ * A server span continues the trace of a sampled {@code traceparent} header, other server spans
+ * and client spans without a current span start a new trace with probability {@code sampleRate}.
+ * A span started while a span is current on the thread, e.g. the client span of an outgoing call
+ * or the server span of a nested intercepted call, always becomes its child. Unsampled
+ * calls get no context: the decision costs one random number and nothing is allocated.
+ * Finished spans are copied into preallocated records of a ring buffer and handed to the
+ * {@link SpanExporter} on a background thread.
+ */
+@Component("servicesTracer")
+@ManagedResource(objectName = "com.be2.services:name=Tracing")
+public class Tracer {
+
+    private static final ThreadLocal<TraceContext> CURRENT = new ThreadLocal<>();
+
+    @Value("${services.trace.enabled:false}")
+    private boolean enabled = false;
+    @Value("${services.trace.sampleRate:0.01}")
+    private volatile double sampleRate = 0.01;
+    @Value("${services.trace.exporter:memory}")
+    private String exporterType = "memory";
+    @Value("${services.trace.file:spans.log}")
+    private String exportFile = "spans.log";
+    @Value("${services.trace.memorySpans:1000}")
+    private int memorySpans = 1000;
+    @Value("${services.trace.bufferSize:8192}")
+    private int bufferSize = 8192;
+    @Value("${services.trace.batchSize:256}")
+    private int batchSize = 256;
+
+    private SpanExporter exporter;
+    private BatchingRingBuffer<SpanRecord> buffer;
+    private final LongAdder sampled = new LongAdder();
+
+    /**
+     * Starts the export thread if tracing is enabled.
+     */
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        exporter = "file".equalsIgnoreCase(exporterType)
+                ? new FileSpanExporter(new File(exportFile))
+                : new InMemorySpanExporter(memorySpans);
+        final SpanExporter target = exporter;
+        buffer = new BatchingRingBuffer<>(
+                bufferSize,
+                batchSize,
+                BatchingRingBuffer.FullPolicy.DROP,
+                new BatchingRingBuffer.EventFactory<SpanRecord>() {
+                    @Override
+                    public SpanRecord newInstance() {
+                        return new SpanRecord();
+                    }
+                },
+                new BatchingRingBuffer.EventHandler<SpanRecord>() {
+                    @Override
+                    public void onEvent(SpanRecord span) {
+                        target.export(span);
+                        span.name = null;
+                    }
+
+                    @Override
+                    public void onBatchEnd() {
+                        target.flush();
+                    }
+
+                    @Override
+                    public void onStop() {
+                        // on the export thread, the exporters are not thread safe
+                        target.close();
+                    }
+                }
+        );
+        buffer.start("services-trace-export");
+    }
+
+    /**
+     * Exports the pending spans and stops the export thread, which closes the exporter.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (buffer != null) {
+            buffer.stop(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    /**
+     *
+     * @return true if spans are recorded at all
+     */
+    public boolean isEnabled() {
+        return buffer != null;
+    }
+
+    /**
+     *
+     * @return span current on this thread, null if the call is not sampled
+     */
+    public TraceContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Starts the span of an incoming call and makes it current. A call intercepted while a span is
+     * current, e.g. a resource calling another resource, nests under that span rather than the header.
+     *
+     * @param traceparent header of the call, may be null
+     * @return the span, null if the call is not sampled
+     */
+    public TraceContext startServerSpan(String traceparent) {
+        if (!isEnabled()) {
+            return null;
+        }
+        TraceContext parent = CURRENT.get();
+        if (parent == null) {
+            parent = TraceContext.parse(traceparent);
+        }
+        if (parent == null) {
+            return startRoot();
+        }
+        return start(parent.getTraceIdHigh(), parent.getTraceIdLow(), parent.getSpanId());
+    }
+
+    /**
+     * Starts the span of an outgoing call and makes it current, so the request carries it.
+     *
+     * @return the span, null if the call is not sampled
+     */
+    public TraceContext startClientSpan() {
+        if (!isEnabled()) {
+            return null;
+        }
+        TraceContext parent = CURRENT.get();
+        if (parent == null) {
+            return startRoot();
+        }
+        return start(parent.getTraceIdHigh(), parent.getTraceIdLow(), parent.getSpanId());
+    }
+
+    private TraceContext startRoot() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() >= sampleRate) {
+            return null;
+        }
+        return start(random.nextLong(), random.nextLong() | 1, 0);
+    }
+
+    private TraceContext start(long traceIdHigh, long traceIdLow, long parentSpanId) {
+        long spanId = ThreadLocalRandom.current().nextLong() | 1;
+        TraceContext span = new TraceContext(traceIdHigh, traceIdLow, spanId, parentSpanId, CURRENT.get());
+        CURRENT.set(span);
+        sampled.increment();
+        return span;
+    }
+
+    /**
+     * Ends a started span, restores the span current before it and queues it for export.
+     *
+     * @param span started span
+     * @param kind
+     * @param name called resource method
+     * @param startMillis wall clock start time
+     * @param durationNanos
+     * @param error
+     */
+    public void endSpan(TraceContext span, SpanRecord.Kind kind, String name, long startMillis, long durationNanos, boolean error) {
+        CURRENT.set(span.getPrevious());
+        BatchingRingBuffer<SpanRecord> buffer = this.buffer;
+        if (buffer == null) {
+            return;
+        }
+        long sequence = buffer.claim();
+        if (sequence < 0) {
+            return;
+        }
+        SpanRecord record = buffer.get(sequence);
+        record.traceIdHigh = span.getTraceIdHigh();
+        record.traceIdLow = span.getTraceIdLow();
+        record.spanId = span.getSpanId();
+        record.parentSpanId = span.getParentSpanId();
+        record.kind = kind;
+        record.name = name;
+        record.startMillis = startMillis;
+        record.durationNanos = durationNanos;
+        record.error = error;
+        buffer.publish(sequence);
+    }
+
+    /**
+     *
+     * @return
+     */
+    @ManagedAttribute
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     *
+     * @param sampleRate between 0 and 1
+     */
+    @ManagedAttribute
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     *
+     * @return number of sampled spans
+     */
+    @ManagedAttribute
+    public long getSampledSpans() {
+        return sampled.sum();
+    }
+
+    /**
+     *
+     * @return number of spans dropped because the export buffer was full
+     */
+    @ManagedAttribute
+    public long getDroppedSpans() {
+        return buffer == null ? 0 : buffer.getDropped();
+    }
+
+    /**
+     *
+     * @return
+     */
+    @ManagedAttribute
+    public String getExporter() {
+        return exporter == null ? "none" : exporter.toString();
+    }
+
+    /**
+     *
+     * @return last spans kept by the in-memory exporter, oldest first
+     */
+    @ManagedAttribute
+    public String[] getRecentSpans() {
+        if (!(exporter instanceof InMemorySpanExporter)) {
+            return new String[0];
+        }
+        List<String> spans = ((InMemorySpanExporter) exporter).getSpans();
+        return spans.toArray(new String[spans.size()]);
+    }
+}
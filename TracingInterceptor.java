@@ -0,0 +1,50 @@
+package com.be2.services.client;
+
+import com.be2.services.trace.SpanRecord;
+import com.be2.services.trace.TraceContext;
+import com.be2.services.trace.Tracer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * Records a client span around each sampled resource call. While the call runs the span is
+ * current, so the request interceptor of the connection pool sends it as {@code traceparent}.
+ */
+public class TracingInterceptor implements MethodInterceptor {
+
+    private final Tracer tracer;
+    private final String path;
+
+    /**
+     *
+     * @param tracer
+     * @param path resource path, used in span names
+     */
+    public TracingInterceptor(Tracer tracer, String path) {
+        this.tracer = tracer;
+        this.path = path;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        TraceContext span = tracer.startClientSpan();
+        if (span == null) {
+            return invocation.proceed();
+        }
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        boolean error = false;
+        try {
+            return invocation.proceed();
+        } catch (Throwable e) {
+            error = true;
+            throw e;
+        } finally {
+            tracer.endSpan(span, SpanRecord.Kind.CLIENT, path + "." + invocation.getMethod().getName(),
+                    startMillis, System.nanoTime() - startNanos, error);
+        }
+    }
+}
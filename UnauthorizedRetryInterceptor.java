@@ -0,0 +1,46 @@
+package com.be2.services.client;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.jboss.resteasy.client.ClientResponseFailure;
+import org.springframework.aop.ProxyMethodInvocation;
+
+/**
+ * Retries a resource call once with a fresh access token when the server answers 401.
+ * <p>
+ * Must be the innermost advice of a resource proxy, so the retry only repeats the HTTP call.
+ */
+public class UnauthorizedRetryInterceptor implements MethodInterceptor {
+
+    private static final int STATUS_UNAUTHORIZED = 401;
+
+    private final AccessTokenManager tokenManager;
+
+    /**
+     *
+     * @param tokenManager
+     */
+    public UnauthorizedRetryInterceptor(AccessTokenManager tokenManager) {
+        this.tokenManager = tokenManager;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        String usedToken = tokenManager.getToken();
+        try {
+            return invocation.proceed();
+        } catch (ClientResponseFailure e) {
+            if (!(invocation instanceof ProxyMethodInvocation)
+                    || e.getResponse() == null
+                    || e.getResponse().getStatus() != STATUS_UNAUTHORIZED) {
+                throw e;
+            }
+            e.getResponse().releaseConnection();
+            tokenManager.refreshAfterUnauthorized(usedToken);
+            return ((ProxyMethodInvocation) invocation).invocableClone().proceed();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.be2.services.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call counts, errors and latencies of the last 15 minutes in a ring of 10 second buckets.
+ * <p>
+ * A bucket belongs to one epoch of the monotonic clock. The first call of a new epoch claims the
+ * bucket with a CAS on its epoch and clears it, so recording takes no lock. Calls racing with the
+ * turnover may be lost or counted in the new epoch, which is acceptable for rates and percentiles.
+ * Windows are summed over the buckets of the last 1 to 15 minutes when read.
+ */
+public class WindowedStats {
+
+    static final long BUCKET_NANOS = TimeUnit.SECONDS.toNanos(10);
+    static final int BUCKET_COUNT = 90;
+    private static final int BUCKETS_PER_MINUTE = (int) (TimeUnit.MINUTES.toNanos(1) / BUCKET_NANOS);
+    private static final int LATENCY_PRECISION_BITS = 5;
+    private static final long LATENCY_MAX_MICROS = TimeUnit.MINUTES.toMicros(2);
+
+    private final long originNanos;
+    private final Bucket[] buckets = new Bucket[BUCKET_COUNT];
+
+    /**
+     *
+     * @param originNanos {@link System#nanoTime()} the epochs are counted from
+     */
+    public WindowedStats(long originNanos) {
+        this.originNanos = originNanos;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    /**
+     *
+     * @param nowNanos {@link System#nanoTime()} at the end of the call
+     * @param latencyNanos
+     * @param error
+     */
+    public void record(long nowNanos, long latencyNanos, boolean error) {
+        long epoch = (nowNanos - originNanos) / BUCKET_NANOS;
+        Bucket bucket = buckets[(int) (epoch % BUCKET_COUNT)];
+        long bucketEpoch = bucket.epoch.get();
+        if (bucketEpoch < epoch && bucket.epoch.compareAndSet(bucketEpoch, epoch)) {
+            bucket.count.reset();
+            bucket.errors.reset();
+            bucket.latency.reset();
+        }
+        bucket.count.increment();
+        if (error) {
+            bucket.errors.increment();
+        }
+        bucket.latency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+    }
+
+    /**
+     *
+     * @param nowNanos {@link System#nanoTime()}
+     * @param minutes between 1 and 15
+     * @return statistics of the last {@code minutes}
+     */
+    public Window window(long nowNanos, int minutes) {
+        int bucketCount = Math.min(Math.max(minutes, 1) * BUCKETS_PER_MINUTE, BUCKET_COUNT);
+        long elapsed = Math.max(0, nowNanos - originNanos);
+        long epoch = elapsed / BUCKET_NANOS;
+        long firstEpoch = epoch - bucketCount + 1;
+
+        long count = 0;
+        long errors = 0;
+        long[] latencies = buckets[0].latency.newCounts();
+        for (Bucket bucket : buckets) {
+            long bucketEpoch = bucket.epoch.get();
+            if (bucketEpoch >= firstEpoch && bucketEpoch <= epoch) {
+                count += bucket.count.sum();
+                errors += bucket.errors.sum();
+                bucket.latency.addCountsTo(latencies);
+            }
+        }
+        // the current bucket is only partly elapsed, and the stats may be younger than the window
+        long coveredNanos = Math.min(elapsed, (bucketCount - 1) * BUCKET_NANOS + elapsed % BUCKET_NANOS);
+        return new Window(count, errors, Math.max(coveredNanos, 1), buckets[0].latency.snapshotOf(latencies));
+    }
+
+    /**
+     * Sums of one window.
+     */
+    public static class Window {
+
+        private final long count;
+        private final long errors;
+        private final long coveredNanos;
+        private final LatencyHistogram.Snapshot latency;
+
+        private Window(long count, long errors, long coveredNanos, LatencyHistogram.Snapshot latency) {
+            this.count = count;
+            this.errors = errors;
+            this.coveredNanos = coveredNanos;
+            this.latency = latency;
+        }
+
+        /**
+         *
+         * @return
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         *
+         * @return calls per second
+         */
+        public double getRate() {
+            return count * (double) TimeUnit.SECONDS.toNanos(1) / coveredNanos;
+        }
+
+        /**
+         *
+         * @return failed calls divided by calls, 0 without calls
+         */
+        public double getErrorRatio() {
+            return count == 0 ? 0 : (double) errors / count;
+        }
+
+        /**
+         *
+         * @param percentile between 0 and 100
+         * @return latency in microseconds
+         */
+        public long getLatencyPercentile(double percentile) {
+            return latency.getValueAtPercentile(percentile);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("rate=%.2f/s errorRatio=%.4f p50=%dus p90=%dus p99=%dus p999=%dus",
+                    getRate(), getErrorRatio(),
+                    getLatencyPercentile(50.0), getLatencyPercentile(90.0),
+                    getLatencyPercentile(99.0), getLatencyPercentile(99.9));
+        }
+    }
+
+    private static class Bucket {
+        private final AtomicLong epoch = new AtomicLong(-1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram(LATENCY_PRECISION_BITS, LATENCY_MAX_MICROS);
+    }
+}
@@ -0,0 +1,91 @@
+package com.be2.services.client;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Negotiates a binary Jackson format for the responses of selected resources and compresses
+ * large request bodies.
+ * <p>
+ * For requests to one of the binary resources, a JSON {@code Accept} header is replaced by the
+ * binary media type with JSON as the less preferred alternative, so a server without the binary
+ * provider still answers JSON. Request bodies larger than the threshold are sent gzip encoded.
+ * Must run before the standard request interceptors, which derive the entity headers.
+ */
+public class WireFormatInterceptor implements HttpRequestInterceptor {
+
+    /**
+     * Media type of Jackson Smile.
+     */
+    public static final String SMILE = "application/x-jackson-smile";
+    /**
+     * Media type of CBOR.
+     */
+    public static final String CBOR = "application/cbor";
+
+    private static final String JSON = "application/json";
+
+    private final String accept;
+    private final String[] binaryResources;
+    private final long gzipThreshold;
+
+    /**
+     *
+     * @param mediaType {@link #SMILE} or {@link #CBOR}
+     * @param binaryResources resource paths, e.g. {@code api/matching}, answered in the binary format
+     * @param gzipThreshold minimum request body size to compress, 0 to never compress
+     */
+    public WireFormatInterceptor(String mediaType, List<String> binaryResources, long gzipThreshold) {
+        this.accept = mediaType + ", " + JSON + ";q=0.5";
+        this.binaryResources = new String[binaryResources.size()];
+        for (int i = 0; i < this.binaryResources.length; i++) {
+            this.binaryResources[i] = "/" + binaryResources.get(i);
+        }
+        this.gzipThreshold = gzipThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+        if (binaryResources.length > 0 && isBinaryResource(request.getRequestLine().getUri())) {
+            Header current = request.getFirstHeader("Accept");
+            if (current == null || current.getValue().contains(JSON)) {
+                request.setHeader("Accept", accept);
+            }
+        }
+        if (gzipThreshold > 0 && request instanceof HttpEntityEnclosingRequest) {
+            HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+            HttpEntity entity = enclosing.getEntity();
+            if (entity != null && entity.getContentEncoding() == null && entity.getContentLength() >= gzipThreshold) {
+                enclosing.setEntity(new GzipCompressingEntity(entity));
+            }
+        }
+    }
+
+    private boolean isBinaryResource(String uri) {
+        int query = uri.indexOf('?');
+        int end = query < 0 ? uri.length() : query;
+        for (String resource : binaryResources) {
+            int at = uri.indexOf(resource);
+            while (at >= 0 && at + resource.length() <= end) {
+                int next = at + resource.length();
+                if (next == end || uri.charAt(next) == '/') {
+                    return true;
+                }
+                at = uri.indexOf(resource, at + 1);
+            }
+        }
+        return false;
+    }
+}